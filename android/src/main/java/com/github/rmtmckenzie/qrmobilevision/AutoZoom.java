@@ -0,0 +1,102 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Rect;
+
+/**
+ * Works out a zoom factor and crop centre that bring codes up to a target share of
+ * the frame, moving a fraction of the way there on each result so the preview
+ * doesn't jump around.
+ * <p>
+ * Works in sensor active array coordinates, so the answer doesn't depend on the
+ * zoom the frame was captured at. Only used from the main thread.
+ */
+class AutoZoom {
+    // changes smaller than this aren't worth a new repeating request
+    private static final float MIN_ZOOM_CHANGE = 0.02f;
+    private static final float MIN_CENTER_CHANGE = 0.005f;
+
+    private final float targetSize;
+    private final float smoothing;
+    private final float maxZoom;
+
+    private float baseZoom;
+    private float zoom;
+    private float centerX = 0.5f;
+    private float centerY = 0.5f;
+
+    /**
+     * @param targetSize - fraction of the sensor's larger side codes should cover
+     * @param smoothing  - fraction of the way towards the target moved per result
+     * @param maxZoom    - largest zoom the camera supports
+     * @param baseZoom   - zoom to go back to, never zoomed out beyond
+     */
+    AutoZoom(float targetSize, float smoothing, float maxZoom, float baseZoom) {
+        this.targetSize = targetSize;
+        this.smoothing = smoothing;
+        this.maxZoom = maxZoom;
+        setBaseZoom(baseZoom);
+    }
+
+    void setBaseZoom(float baseZoom) {
+        this.baseZoom = Math.min(Math.max(1f, baseZoom), maxZoom);
+        reset();
+    }
+
+    /**
+     * Move towards framing found, the bounds of the codes in the last frame.
+     *
+     * @return whether zoom or centre changed enough to be applied
+     */
+    boolean onCodes(Rect found, Rect activeArray) {
+        if (found.isEmpty() || activeArray.isEmpty()) {
+            return false;
+        }
+
+        float size = Math.max(
+            (float) found.width() / activeArray.width(),
+            (float) found.height() / activeArray.height());
+        float targetZoom = Math.min(Math.max(baseZoom, targetSize / size), maxZoom);
+        float targetX = (float) (found.centerX() - activeArray.left) / activeArray.width();
+        float targetY = (float) (found.centerY() - activeArray.top) / activeArray.height();
+        if (targetZoom <= baseZoom) {
+            // big enough at the base zoom, so drift back to the middle as well.
+            targetX = 0.5f;
+            targetY = 0.5f;
+        }
+
+        float newZoom = zoom + (targetZoom - zoom) * smoothing;
+        float newX = centerX + (targetX - centerX) * smoothing;
+        float newY = centerY + (targetY - centerY) * smoothing;
+        if (Math.abs(newZoom - zoom) < MIN_ZOOM_CHANGE * zoom
+            && Math.abs(newX - centerX) < MIN_CENTER_CHANGE
+            && Math.abs(newY - centerY) < MIN_CENTER_CHANGE) {
+            return false;
+        }
+
+        zoom = newZoom;
+        centerX = newX;
+        centerY = newY;
+        return true;
+    }
+
+    /**
+     * Go straight back to the base zoom, centred.
+     */
+    void reset() {
+        zoom = baseZoom;
+        centerX = 0.5f;
+        centerY = 0.5f;
+    }
+
+    float getZoom() {
+        return zoom;
+    }
+
+    float getCenterX() {
+        return centerX;
+    }
+
+    float getCenterY() {
+        return centerY;
+    }
+}
@@ -1,5 +1,6 @@
 package com.github.rmtmckenzie.qrmobilevision;
 import com.google.android.gms.vision.barcode.Barcode;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +28,9 @@ public enum BarcodeFormats {
 
     public final int intValue;
 
+    private static final int TWO_DIMENSIONAL_FORMATS =
+        Barcode.QR_CODE | Barcode.DATA_MATRIX | Barcode.PDF417 | Barcode.AZTEC;
+
     private static Map<String, Integer> formatsMap;
 
     static {
@@ -59,5 +63,43 @@ public enum BarcodeFormats {
         return val;
     }
 
+    /**
+     * Whether the value only contains linear (1D) formats. ALL_FORMATS
+     * includes 2D formats so is never linear only.
+     */
+    static boolean isLinearOnly(int formats) {
+        return formats != ALL_FORMATS.intValue && (formats & TWO_DIMENSIONAL_FORMATS) == 0;
+    }
+
+    /**
+     * Return the format with exactly this value, or null if there isn't one
+     * (including ALL_FORMATS' value, which isn't a single format).
+     */
+    static BarcodeFormats fromIntValue(int intValue) {
+        for (BarcodeFormats value : BarcodeFormats.values()) {
+            if (value != ALL_FORMATS && value.intValue == intValue) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inverse of intFromStringList: the names of the formats making up the value.
+     */
+    static List<String> stringListFromInt(int formats) {
+        List<String> strings = new ArrayList<>();
+        if (formats == ALL_FORMATS.intValue) {
+            strings.add(ALL_FORMATS.name());
+            return strings;
+        }
+        for (BarcodeFormats value : BarcodeFormats.values()) {
+            if (value != ALL_FORMATS && (formats & value.intValue) != 0) {
+                strings.add(value.name());
+            }
+        }
+        return strings;
+    }
+
 
 }
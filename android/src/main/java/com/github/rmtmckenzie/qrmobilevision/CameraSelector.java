@@ -0,0 +1,244 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Ranks the cameras facing the requested way by how well suited they are to reading
+ * codes, rather than taking whichever comes first in the id list.
+ * <p>
+ * The score weighs close focus most (codes are usually held near the lens), then
+ * having auto focus at all, then how fast YUV frames at the target size can be
+ * delivered, then the hardware level. Ranking works on plain Candidates so it
+ * doesn't need a camera to exercise.
+ */
+class CameraSelector {
+    private static final String TAG = "cgl.fqs.CameraSelector";
+
+    // closest focus worth scoring, in diopters; 10 is 10cm
+    private static final float MAX_SCORED_FOCUS_DIOPTERS = 10f;
+    private static final double FOCUS_WEIGHT = 40;
+    private static final double AUTO_FOCUS_WEIGHT = 25;
+    private static final double THROUGHPUT_WEIGHT = 20;
+    private static final double HARDWARE_LEVEL_WEIGHT = 15;
+    private static final double TARGET_FPS = 30;
+
+    static class Candidate {
+        final String cameraId;
+        // set when this is one of the physical cameras behind the logical cameraId
+        final String physicalCameraId;
+        // in diopters; 0 means fixed focus
+        final float minFocusDistance;
+        final boolean hasAutoFocus;
+        final int hardwareLevel;
+        // max frame rate for YUV at the target size, 0 if unknown
+        final double yuvFps;
+        double score;
+
+        Candidate(String cameraId, String physicalCameraId, float minFocusDistance, boolean hasAutoFocus,
+                  int hardwareLevel, double yuvFps) {
+            this.cameraId = cameraId;
+            this.physicalCameraId = physicalCameraId;
+            this.minFocusDistance = minFocusDistance;
+            this.hasAutoFocus = hasAutoFocus;
+            this.hardwareLevel = hardwareLevel;
+            this.yuvFps = yuvFps;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("cameraId", cameraId);
+            map.put("physicalCameraId", physicalCameraId);
+            map.put("minFocusDistance", (double) minFocusDistance);
+            map.put("hasAutoFocus", hasAutoFocus);
+            map.put("hardwareLevel", hardwareLevel);
+            map.put("yuvFps", yuvFps);
+            map.put("score", score);
+            return map;
+        }
+    }
+
+    private CameraSelector() {
+    }
+
+    static double score(Candidate candidate) {
+        double focus = Math.min(candidate.minFocusDistance, MAX_SCORED_FOCUS_DIOPTERS) / MAX_SCORED_FOCUS_DIOPTERS;
+        double throughput = Math.min(candidate.yuvFps, TARGET_FPS) / TARGET_FPS;
+        return FOCUS_WEIGHT * focus
+            + (candidate.hasAutoFocus ? AUTO_FOCUS_WEIGHT : 0)
+            + THROUGHPUT_WEIGHT * throughput
+            + HARDWARE_LEVEL_WEIGHT * hardwareLevelRank(candidate.hardwareLevel);
+    }
+
+    /**
+     * Score and sort best first. Equal scores keep their order, so with nothing to
+     * tell them apart the first camera listed still wins.
+     */
+    static List<Candidate> rank(List<Candidate> candidates) {
+        List<Candidate> ranked = new ArrayList<>(candidates);
+        for (Candidate candidate : ranked) {
+            candidate.score = score(candidate);
+        }
+        Collections.sort(ranked, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                return Double.compare(b.score, a.score);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * The camera to open: the one matching the requested ids when given and found,
+     * otherwise the best ranked, or the first listed without scoring. Null if there
+     * are no candidates.
+     *
+     * @param candidates - in id list order
+     * @param ranked     - the same candidates as returned by rank
+     */
+    static Candidate select(List<Candidate> candidates, List<Candidate> ranked, boolean scoreCameras,
+                            String cameraId, String physicalCameraId) {
+        if (cameraId != null) {
+            Candidate requested = find(ranked, cameraId, physicalCameraId);
+            if (requested != null) {
+                return requested;
+            }
+            Log.w(TAG, "Requested camera " + cameraId + " not found");
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        return scoreCameras ? ranked.get(0) : candidates.get(0);
+    }
+
+    /**
+     * The candidate matching the requested ids, or null.
+     */
+    static Candidate find(List<Candidate> candidates, String cameraId, String physicalCameraId) {
+        for (Candidate candidate : candidates) {
+            if (candidate.cameraId.equals(cameraId)
+                && (physicalCameraId == null ? candidate.physicalCameraId == null : physicalCameraId.equals(candidate.physicalCameraId))) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Every camera facing lensFacing, and with includePhysical the physical cameras
+     * behind logical multi-cameras too, in id list order.
+     */
+    static List<Candidate> candidates(CameraManager manager, int lensFacing, int targetWidth, int targetHeight,
+                                      boolean includePhysical) throws CameraAccessException {
+        List<Candidate> candidates = new ArrayList<>();
+        for (String id : manager.getCameraIdList()) {
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            if (facing == null || facing != lensFacing) {
+                continue;
+            }
+            candidates.add(fromCharacteristics(id, null, characteristics, targetWidth, targetHeight));
+
+            if (includePhysical && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && isLogicalMultiCamera(characteristics)) {
+                for (String physicalId : characteristics.getPhysicalCameraIds()) {
+                    try {
+                        CameraCharacteristics physical = manager.getCameraCharacteristics(physicalId);
+                        candidates.add(fromCharacteristics(id, physicalId, physical, targetWidth, targetHeight));
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, "No characteristics for physical camera " + physicalId, e);
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    static Candidate fromCharacteristics(String cameraId, String physicalCameraId, CameraCharacteristics characteristics,
+                                         int targetWidth, int targetHeight) {
+        Float minFocusDistance = characteristics.get(CameraCharacteristics.LENS_INFO_MINIMUM_FOCUS_DISTANCE);
+        Integer hardwareLevel = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        return new Candidate(
+            cameraId,
+            physicalCameraId,
+            minFocusDistance == null ? 0 : minFocusDistance,
+            QrCameraC2.afMode(characteristics) != null,
+            hardwareLevel == null ? CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY : hardwareLevel,
+            yuvFps(characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP), targetWidth, targetHeight));
+    }
+
+    /**
+     * Max frame rate of the smallest YUV size covering the target, either way round.
+     */
+    private static double yuvFps(StreamConfigurationMap map, int targetWidth, int targetHeight) {
+        if (map == null) {
+            return 0;
+        }
+        Size[] sizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        if (sizes == null) {
+            return 0;
+        }
+        int longSide = Math.max(targetWidth, targetHeight);
+        int shortSide = Math.min(targetWidth, targetHeight);
+        Size best = null;
+        for (Size size : sizes) {
+            int sizeLong = Math.max(size.getWidth(), size.getHeight());
+            int sizeShort = Math.min(size.getWidth(), size.getHeight());
+            if (sizeLong < longSide || sizeShort < shortSide) {
+                continue;
+            }
+            if (best == null || (long) size.getWidth() * size.getHeight() < (long) best.getWidth() * best.getHeight()) {
+                best = size;
+            }
+        }
+        if (best == null) {
+            return 0;
+        }
+        long frameDuration = map.getOutputMinFrameDuration(ImageFormat.YUV_420_888, best);
+        return frameDuration <= 0 ? 0 : 1e9 / frameDuration;
+    }
+
+    private static boolean isLogicalMultiCamera(CameraCharacteristics characteristics) {
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities == null) {
+            return false;
+        }
+        for (int capability : capabilities) {
+            if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_LOGICAL_MULTI_CAMERA) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 0 to 1, from least to most capable. The constants themselves aren't in order.
+     */
+    private static double hardwareLevelRank(int hardwareLevel) {
+        switch (hardwareLevel) {
+            case CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_3:
+                return 1;
+            case CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL:
+                return 0.75;
+            case CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED:
+                return 0.5;
+            case CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_EXTERNAL:
+                return 0.25;
+            default:
+                return 0;
+        }
+    }
+}
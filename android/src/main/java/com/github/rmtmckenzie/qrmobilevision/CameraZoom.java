@@ -41,17 +41,35 @@ public final class CameraZoom {
         this.hasSupport = (Float.compare(this.maxZoom, CameraZoom.DEFAULT_ZOOM_FACTOR) > 0);
     }
 
+    public float clamp(final float zoom) {
+        return MathUtils.clamp(zoom, CameraZoom.DEFAULT_ZOOM_FACTOR, this.maxZoom);
+    }
+
     public void setZoom(@NonNull final CaptureRequest.Builder builder, final float zoom) {
+        this.setZoom(builder, zoom, 0.5f, 0.5f);
+    }
+
+    /**
+     * Zoom in on a point other than the centre of the sensor.
+     *
+     * @param pointX - horizontal centre of the crop, as a fraction of the sensor width
+     * @param pointY - vertical centre of the crop, as a fraction of the sensor height
+     */
+    public void setZoom(@NonNull final CaptureRequest.Builder builder, final float zoom,
+                        final float pointX, final float pointY) {
         if (!this.hasSupport) {
             return;
         }
 
-        final float newZoom = MathUtils.clamp(zoom, CameraZoom.DEFAULT_ZOOM_FACTOR, this.maxZoom);
+        final float newZoom = this.clamp(zoom);
 
-        final int centerX = this.mSensorSize.width() / 2;
-        final int centerY = this.mSensorSize.height() / 2;
         final int deltaX = (int) ((0.5f * this.mSensorSize.width()) / newZoom);
         final int deltaY = (int) ((0.5f * this.mSensorSize.height()) / newZoom);
+        // keep the crop inside the sensor
+        final int centerX = MathUtils.clamp((int) (pointX * this.mSensorSize.width()),
+            deltaX, this.mSensorSize.width() - deltaX);
+        final int centerY = MathUtils.clamp((int) (pointY * this.mSensorSize.height()),
+            deltaY, this.mSensorSize.height() - deltaY);
 
         this.mCropRegion.set(centerX - deltaX,
             centerY - deltaY,
@@ -0,0 +1,201 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional tuning of the detection pipeline, passed along with the arguments to start.
+ * Anything not supplied keeps its default. Most defaults match the plain behaviour, but
+ * scanlineFastPath is on unless turned off and changes the default pipeline.
+ */
+class DetectionOptions {
+    boolean singleShot = false;
+    // false when results only go to native QrResultListeners
+    boolean dartResults = true;
+    boolean focusOnCodes = false;
+
+    // pick the best scoring camera for the lens facing rather than the first listed
+    boolean scoreCameras = false;
+    boolean includePhysicalCameras = false;
+    // overrides the selection when set
+    String cameraId = null;
+    String physicalCameraId = null;
+
+    boolean watchdog = false;
+    int frameTimeoutMillis = 3000;
+    int recoveryBackoffMillis = 500;
+    int maxRecoveryBackoffMillis = 8000;
+
+    boolean powerAware = false;
+    int powerStepUpMillis = 30000;
+
+    boolean idleMode = false;
+    int idleAfterMillis = 15000;
+    int idleMotionThreshold = 12;
+
+    // per-frame phase spans kept for dumpTrace, 0 for none
+    int traceSpans = 0;
+
+    // decode straight from the camera's image instead of copying it first
+    boolean zeroCopy = false;
+
+    // bytes the frame buffers may take, 0 for no limit
+    int memoryBudgetBytes = 0;
+
+    boolean autoZoom = false;
+    float autoZoomTargetSize = 0.3f;
+    float autoZoomSmoothing = 0.3f;
+    int autoZoomResetMillis = 3000;
+
+    boolean autoLight = false;
+    int darkLuma = 50;
+    int brightLuma = 110;
+    int torchOffLuma = 200;
+    int lightHoldFrames = 15;
+
+    boolean highResFallback = false;
+    int highResMisses = 10;
+    double highResMinDetail = 300;
+    int highResCooldownMillis = 2000;
+
+    // names of the FrameProcessorChain stages to run on each frame, in order
+    List<String> preprocess = null;
+    double stretchClip = 0.01;
+    int binarizeBlockSize = 16;
+
+    boolean skipStaticFrames = false;
+    int staticFrameThreshold = 8;
+    int staticFrameRefreshInterval = 30;
+
+    boolean rejectBlurryFrames = false;
+    double minSharpness = 20;
+    double relativeSharpness = 0.35;
+
+    boolean trackRoi = false;
+    float roiExpansion = 0.5f;
+    int roiFullFrameInterval = 10;
+
+    boolean tiledDetection = false;
+    int tileColumns = 2;
+    int tileRows = 2;
+    float tileOverlap = 0.15f;
+
+    boolean escalate = false;
+    int escalationScale = 2;
+    int escalationMisses = 5;
+
+    boolean narrowFormats = false;
+    int narrowingWarmup = 20;
+    int narrowingProbeInterval = 10;
+    double narrowingCoverage = 0.95;
+
+    // only takes effect when the requested formats are all linear
+    boolean scanlineFastPath = true;
+    int scanlineFullFrameInterval = 10;
+
+    boolean inventory = false;
+    int inventoryDeltaIntervalMillis = 500;
+
+    static DetectionOptions fromArguments(Map<String, Object> arguments) {
+        DetectionOptions options = new DetectionOptions();
+        if (arguments == null) {
+            return options;
+        }
+
+        options.singleShot = getBoolean(arguments, "singleShot", options.singleShot);
+        options.dartResults = getBoolean(arguments, "dartResults", options.dartResults);
+        options.focusOnCodes = getBoolean(arguments, "focusOnCodes", options.focusOnCodes);
+        options.scoreCameras = getBoolean(arguments, "scoreCameras", options.scoreCameras);
+        options.includePhysicalCameras = getBoolean(arguments, "includePhysicalCameras", options.includePhysicalCameras);
+        options.cameraId = getString(arguments, "cameraId", options.cameraId);
+        options.physicalCameraId = getString(arguments, "physicalCameraId", options.physicalCameraId);
+        options.watchdog = getBoolean(arguments, "watchdog", options.watchdog);
+        options.frameTimeoutMillis = Math.max(100, getInt(arguments, "frameTimeoutMillis", options.frameTimeoutMillis));
+        options.recoveryBackoffMillis = getInt(arguments, "recoveryBackoffMillis", options.recoveryBackoffMillis);
+        options.maxRecoveryBackoffMillis = getInt(arguments, "maxRecoveryBackoffMillis", options.maxRecoveryBackoffMillis);
+        options.powerAware = getBoolean(arguments, "powerAware", options.powerAware);
+        options.powerStepUpMillis = getInt(arguments, "powerStepUpMillis", options.powerStepUpMillis);
+        options.idleMode = getBoolean(arguments, "idleMode", options.idleMode);
+        options.idleAfterMillis = getInt(arguments, "idleAfterMillis", options.idleAfterMillis);
+        options.idleMotionThreshold = getInt(arguments, "idleMotionThreshold", options.idleMotionThreshold);
+        options.traceSpans = Math.max(0, getInt(arguments, "traceSpans", options.traceSpans));
+        options.zeroCopy = getBoolean(arguments, "zeroCopy", options.zeroCopy);
+        options.memoryBudgetBytes = Math.max(0, getInt(arguments, "memoryBudgetBytes", options.memoryBudgetBytes));
+        options.autoZoom = getBoolean(arguments, "autoZoom", options.autoZoom);
+        options.autoZoomTargetSize = (float) getDouble(arguments, "autoZoomTargetSize", options.autoZoomTargetSize);
+        options.autoZoomSmoothing = (float) Math.min(1, Math.max(0.01, getDouble(arguments, "autoZoomSmoothing", options.autoZoomSmoothing)));
+        options.autoZoomResetMillis = getInt(arguments, "autoZoomResetMillis", options.autoZoomResetMillis);
+        options.autoLight = getBoolean(arguments, "autoLight", options.autoLight);
+        options.darkLuma = getInt(arguments, "darkLuma", options.darkLuma);
+        options.brightLuma = getInt(arguments, "brightLuma", options.brightLuma);
+        options.torchOffLuma = getInt(arguments, "torchOffLuma", options.torchOffLuma);
+        options.lightHoldFrames = getInt(arguments, "lightHoldFrames", options.lightHoldFrames);
+        options.highResFallback = getBoolean(arguments, "highResFallback", options.highResFallback);
+        options.highResMisses = getInt(arguments, "highResMisses", options.highResMisses);
+        options.highResMinDetail = getDouble(arguments, "highResMinDetail", options.highResMinDetail);
+        options.highResCooldownMillis = getInt(arguments, "highResCooldownMillis", options.highResCooldownMillis);
+        options.preprocess = getStringList(arguments, "preprocess", options.preprocess);
+        options.stretchClip = getDouble(arguments, "stretchClip", options.stretchClip);
+        options.binarizeBlockSize = getInt(arguments, "binarizeBlockSize", options.binarizeBlockSize);
+        options.skipStaticFrames = getBoolean(arguments, "skipStaticFrames", options.skipStaticFrames);
+        options.staticFrameThreshold = getInt(arguments, "staticFrameThreshold", options.staticFrameThreshold);
+        options.staticFrameRefreshInterval = getInt(arguments, "staticFrameRefreshInterval", options.staticFrameRefreshInterval);
+        options.rejectBlurryFrames = getBoolean(arguments, "rejectBlurryFrames", options.rejectBlurryFrames);
+        options.minSharpness = getDouble(arguments, "minSharpness", options.minSharpness);
+        options.relativeSharpness = getDouble(arguments, "relativeSharpness", options.relativeSharpness);
+        options.trackRoi = getBoolean(arguments, "trackRoi", options.trackRoi);
+        options.roiExpansion = (float) getDouble(arguments, "roiExpansion", options.roiExpansion);
+        options.roiFullFrameInterval = getInt(arguments, "roiFullFrameInterval", options.roiFullFrameInterval);
+        options.tiledDetection = getBoolean(arguments, "tiledDetection", options.tiledDetection);
+        options.tileColumns = Math.max(1, getInt(arguments, "tileColumns", options.tileColumns));
+        options.tileRows = Math.max(1, getInt(arguments, "tileRows", options.tileRows));
+        options.tileOverlap = (float) getDouble(arguments, "tileOverlap", options.tileOverlap);
+        options.escalate = getBoolean(arguments, "escalate", options.escalate);
+        options.escalationScale = Math.max(1, getInt(arguments, "escalationScale", options.escalationScale));
+        options.escalationMisses = getInt(arguments, "escalationMisses", options.escalationMisses);
+        options.narrowFormats = getBoolean(arguments, "narrowFormats", options.narrowFormats);
+        options.narrowingWarmup = getInt(arguments, "narrowingWarmup", options.narrowingWarmup);
+        options.narrowingProbeInterval = Math.max(1, getInt(arguments, "narrowingProbeInterval", options.narrowingProbeInterval));
+        options.narrowingCoverage = getDouble(arguments, "narrowingCoverage", options.narrowingCoverage);
+        options.scanlineFastPath = getBoolean(arguments, "scanlineFastPath", options.scanlineFastPath);
+        options.scanlineFullFrameInterval = Math.max(1, getInt(arguments, "scanlineFullFrameInterval", options.scanlineFullFrameInterval));
+        options.inventory = getBoolean(arguments, "inventory", options.inventory);
+        options.inventoryDeltaIntervalMillis = getInt(arguments, "inventoryDeltaIntervalMillis", options.inventoryDeltaIntervalMillis);
+        return options;
+    }
+
+    private static boolean getBoolean(Map<String, Object> arguments, String key, boolean defaultValue) {
+        Object value = arguments.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    private static int getInt(Map<String, Object> arguments, String key, int defaultValue) {
+        Object value = arguments.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    private static String getString(Map<String, Object> arguments, String key, String defaultValue) {
+        Object value = arguments.get(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    private static List<String> getStringList(Map<String, Object> arguments, String key, List<String> defaultValue) {
+        Object value = arguments.get(key);
+        if (!(value instanceof List)) {
+            return defaultValue;
+        }
+        List<String> strings = new ArrayList<>();
+        for (Object item : (List<?>) value) {
+            if (item instanceof String) {
+                strings.add((String) item);
+            }
+        }
+        return strings;
+    }
+
+    private static double getDouble(Map<String, Object> arguments, String key, double defaultValue) {
+        Object value = arguments.get(key);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+}
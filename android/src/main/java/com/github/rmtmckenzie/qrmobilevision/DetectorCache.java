@@ -0,0 +1,37 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.Context;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+import com.google.android.gms.vision.barcode.BarcodeDetector;
+
+/**
+ * Keeps one detector per format mask, so switching between masks doesn't pay
+ * for building a new detector every time. Only used from the detection worker.
+ */
+class DetectorCache {
+    private final Context context;
+    private final SparseArray<Detector<Barcode>> detectors = new SparseArray<>();
+
+    DetectorCache(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    Detector<Barcode> get(int formats) {
+        Detector<Barcode> detector = detectors.get(formats);
+        if (detector == null) {
+            detector = new BarcodeDetector.Builder(context).setBarcodeFormats(formats).build();
+            detectors.put(formats, detector);
+        }
+        return detector;
+    }
+
+    void release() {
+        for (int i = 0; i < detectors.size(); ++i) {
+            detectors.valueAt(i).release();
+        }
+        detectors.clear();
+    }
+}
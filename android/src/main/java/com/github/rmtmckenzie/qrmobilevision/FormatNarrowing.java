@@ -0,0 +1,134 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Narrows the format mask handed to the detector to the formats actually seen in
+ * this session. Hits per format are counted over a warm-up window, after which
+ * only the formats making up most of the hits are decoded. A sample of frames is
+ * still decoded with the full mask, and any other format found there is added back.
+ * <p>
+ * Only used from the detection worker, apart from putStats on the main thread.
+ */
+class FormatNarrowing {
+    private final int requestedFormats;
+    private final int warmupDecodes;
+    private final int probeInterval;
+    private final double coverage;
+
+    // atomic as putStats reads the counts from the main thread
+    private final AtomicIntegerArray hits = new AtomicIntegerArray(BarcodeFormats.values().length);
+    private int decodes;
+    private int framesSinceProbe;
+    private boolean probing;
+    private volatile int activeFormats;
+    private volatile long probeFrames;
+    private volatile long probeHits;
+
+    /**
+     * @param requestedFormats - mask that was asked for, used during warm up and for probes
+     * @param warmupDecodes    - number of frames with results before narrowing
+     * @param probeInterval    - after narrowing, every this many frames is decoded with the full mask
+     * @param coverage         - share of the hits the narrowed formats must account for
+     */
+    FormatNarrowing(int requestedFormats, int warmupDecodes, int probeInterval, double coverage) {
+        this.requestedFormats = requestedFormats;
+        this.warmupDecodes = warmupDecodes;
+        this.probeInterval = probeInterval;
+        this.coverage = coverage;
+        this.activeFormats = requestedFormats;
+    }
+
+    /**
+     * Format mask to decode the next frame with.
+     */
+    int nextFormats() {
+        if (activeFormats == requestedFormats) {
+            probing = false;
+            return requestedFormats;
+        }
+        probing = ++framesSinceProbe >= probeInterval;
+        if (probing) {
+            framesSinceProbe = 0;
+            probeFrames++;
+            return requestedFormats;
+        }
+        return activeFormats;
+    }
+
+    void onResult(SparseArray<Barcode> detectedItems) {
+        if (detectedItems == null || detectedItems.size() == 0) {
+            return;
+        }
+
+        int found = 0;
+        for (int i = 0; i < detectedItems.size(); ++i) {
+            BarcodeFormats format = BarcodeFormats.fromIntValue(detectedItems.valueAt(i).format);
+            if (format != null) {
+                hits.incrementAndGet(format.ordinal());
+                found |= format.intValue;
+            }
+        }
+
+        if (activeFormats != requestedFormats) {
+            if (probing && (found & ~activeFormats) != 0) {
+                // the probe found something the narrowed mask would have missed.
+                probeHits++;
+                activeFormats |= found;
+            }
+        } else if (++decodes >= warmupDecodes) {
+            narrow();
+        }
+    }
+
+    private void narrow() {
+        int[] counts = new int[hits.length()];
+        int total = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = hits.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return;
+        }
+
+        // take the most hit formats until they cover enough of the hits.
+        int formats = 0;
+        int covered = 0;
+        boolean[] taken = new boolean[counts.length];
+        while (covered < total * coverage) {
+            int best = -1;
+            for (int i = 0; i < counts.length; ++i) {
+                if (!taken[i] && counts[i] > 0 && (best < 0 || counts[i] > counts[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) break;
+            taken[best] = true;
+            covered += counts[best];
+            formats |= BarcodeFormats.values()[best].intValue;
+        }
+        activeFormats = formats;
+    }
+
+    void putStats(Map<String, Object> stats) {
+        stats.put("activeFormats", BarcodeFormats.stringListFromInt(activeFormats));
+        Map<String, Integer> formatHits = new HashMap<>();
+        for (BarcodeFormats format : BarcodeFormats.values()) {
+            int count = hits.get(format.ordinal());
+            if (count > 0) {
+                formatHits.put(format.name(), count);
+            }
+        }
+        stats.put("formatHits", formatHits);
+        stats.put("probeFrames", probeFrames);
+        stats.put("probeHits", probeHits);
+        stats.put("probeHitRate", probeFrames == 0 ? 0.0 : (double) probeHits / probeFrames);
+    }
+}
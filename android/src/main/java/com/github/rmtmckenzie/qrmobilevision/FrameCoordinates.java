@@ -0,0 +1,77 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.google.android.gms.vision.Frame;
+
+/**
+ * Conversions between raw image coordinates and the upright coordinates the
+ * detector reports for a frame with a given rotation.
+ */
+final class FrameCoordinates {
+
+    private FrameCoordinates() {
+    }
+
+    /**
+     * Map a point from the upright coordinates reported by the detector for a frame
+     * with the given rotation back to raw image coordinates.
+     */
+    static void toRaw(Point point, int rotation, int width, int height) {
+        int x = point.x;
+        int y = point.y;
+        switch (rotation) {
+            case Frame.ROTATION_90:
+                point.x = y;
+                point.y = height - x;
+                break;
+            case Frame.ROTATION_180:
+                point.x = width - x;
+                point.y = height - y;
+                break;
+            case Frame.ROTATION_270:
+                point.x = width - y;
+                point.y = x;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Map a point in raw image coordinates to the upright coordinates the detector
+     * reports for a frame with the given rotation. Inverse of toRaw.
+     */
+    static void toUpright(Point point, int rotation, int width, int height) {
+        int x = point.x;
+        int y = point.y;
+        switch (rotation) {
+            case Frame.ROTATION_90:
+                point.x = height - y;
+                point.y = x;
+                break;
+            case Frame.ROTATION_180:
+                point.x = width - x;
+                point.y = height - y;
+                break;
+            case Frame.ROTATION_270:
+                point.x = y;
+                point.y = width - x;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Map a point reported for a frame cropped from a larger image to the upright
+     * coordinates of the full image, which is width by height in raw coordinates.
+     */
+    static void fromCrop(Point point, Rect crop, int rotation, int width, int height) {
+        toRaw(point, rotation, crop.width(), crop.height());
+        point.x += crop.left;
+        point.y += crop.top;
+        toUpright(point, rotation, width, height);
+    }
+}
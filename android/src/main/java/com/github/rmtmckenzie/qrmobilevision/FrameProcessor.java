@@ -0,0 +1,19 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+/**
+ * A stage conditioning the luma plane in place before it reaches the detector.
+ * <p>
+ * Stages run on the detection worker, one frame at a time, and must not allocate
+ * per frame; anything they need is kept between frames and only grown.
+ */
+interface FrameProcessor {
+    /**
+     * Name used in the options and the stats.
+     */
+    String name();
+
+    /**
+     * Process the window of width by height pixels starting at offset.
+     */
+    void process(byte[] luma, int offset, int rowStride, int pixelStride, int width, int height);
+}
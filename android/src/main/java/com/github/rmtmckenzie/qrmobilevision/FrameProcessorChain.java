@@ -0,0 +1,300 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs an ordered list of FrameProcessor stages over each frame's luma, for codes
+ * that only decode once conditioned: glossy labels, faded thermal prints, white
+ * on black. Time spent in each stage is kept for the stats.
+ */
+class FrameProcessorChain {
+    private static final String TAG = "cgl.fqs.FrameProcessorChain";
+
+    static final String CONTRAST_STRETCH = "contrastStretch";
+    static final String EQUALIZE_HISTOGRAM = "equalizeHistogram";
+    static final String BINARIZE = "binarize";
+    static final String INVERT = "invert";
+
+    private final FrameProcessor[] stages;
+    private final AtomicLongArray stageNanos;
+    private final AtomicLong frames = new AtomicLong();
+
+    FrameProcessorChain(List<FrameProcessor> stages) {
+        this.stages = stages.toArray(new FrameProcessor[0]);
+        this.stageNanos = new AtomicLongArray(this.stages.length);
+    }
+
+    /**
+     * The chain for the named built-in stages, in order, or null if there are none.
+     * Unknown names are logged and left out.
+     */
+    static FrameProcessorChain fromNames(List<String> names, double stretchClip, int binarizeBlockSize) {
+        if (names == null) {
+            return null;
+        }
+        List<FrameProcessor> stages = new ArrayList<>();
+        for (String name : names) {
+            if (CONTRAST_STRETCH.equals(name)) {
+                stages.add(new ContrastStretch(stretchClip));
+            } else if (EQUALIZE_HISTOGRAM.equals(name)) {
+                stages.add(new HistogramEqualization());
+            } else if (BINARIZE.equals(name)) {
+                stages.add(new AdaptiveBinarization(binarizeBlockSize));
+            } else if (INVERT.equals(name)) {
+                stages.add(new Invert());
+            } else {
+                Log.w(TAG, "Unknown frame processor: " + name);
+            }
+        }
+        return stages.isEmpty() ? null : new FrameProcessorChain(stages);
+    }
+
+    /**
+     * Run every stage over the window. Only called from the detection worker.
+     */
+    void process(byte[] luma, int offset, int rowStride, int pixelStride, int width, int height) {
+        for (int i = 0; i < stages.length; ++i) {
+            long start = System.nanoTime();
+            stages[i].process(luma, offset, rowStride, pixelStride, width, height);
+            stageNanos.addAndGet(i, System.nanoTime() - start);
+        }
+        frames.incrementAndGet();
+    }
+
+    void putStats(Map<String, Object> stats) {
+        long processed = frames.get();
+        Map<String, Object> stageMillis = new HashMap<>();
+        double totalMillis = 0;
+        for (int i = 0; i < stages.length; ++i) {
+            double millis = processed == 0 ? 0.0 : stageNanos.get(i) / 1e6 / processed;
+            stageMillis.put(stages[i].name(), millis);
+            totalMillis += millis;
+        }
+        stats.put("framesPreprocessed", processed);
+        stats.put("preprocessMillis", totalMillis);
+        stats.put("preprocessStageMillis", stageMillis);
+    }
+
+    /**
+     * Fill the histogram of the window, returning the number of pixels counted.
+     */
+    static int histogram(byte[] luma, int offset, int rowStride, int pixelStride, int width, int height, int[] histogram) {
+        Arrays.fill(histogram, 0);
+        for (int y = 0; y < height; ++y) {
+            int index = offset + y * rowStride;
+            for (int x = 0; x < width; ++x, index += pixelStride) {
+                histogram[luma[index] & 0xFF]++;
+            }
+        }
+        return width * height;
+    }
+
+    static void applyLut(byte[] luma, int offset, int rowStride, int pixelStride, int width, int height, byte[] lut) {
+        for (int y = 0; y < height; ++y) {
+            int index = offset + y * rowStride;
+            for (int x = 0; x < width; ++x, index += pixelStride) {
+                luma[index] = lut[luma[index] & 0xFF];
+            }
+        }
+    }
+
+    /**
+     * Stretches the range between the clip fraction's darkest and brightest pixels
+     * over the full 0-255, for washed out or underexposed prints.
+     */
+    static class ContrastStretch implements FrameProcessor {
+        private final double clip;
+        private final int[] histogram = new int[256];
+        private final byte[] lut = new byte[256];
+
+        ContrastStretch(double clip) {
+            this.clip = Math.max(0, Math.min(0.49, clip));
+        }
+
+        @Override
+        public String name() {
+            return CONTRAST_STRETCH;
+        }
+
+        @Override
+        public void process(byte[] luma, int offset, int rowStride, int pixelStride, int width, int height) {
+            int count = histogram(luma, offset, rowStride, pixelStride, width, height, histogram);
+            int clipCount = (int) (count * clip);
+
+            int low = 0;
+            for (int seen = 0; low < 255; ++low) {
+                seen += histogram[low];
+                if (seen > clipCount) break;
+            }
+            int high = 255;
+            for (int seen = 0; high > 0; --high) {
+                seen += histogram[high];
+                if (seen > clipCount) break;
+            }
+            if (high <= low) {
+                // a flat frame has nothing to stretch.
+                return;
+            }
+
+            int range = high - low;
+            for (int i = 0; i < 256; ++i) {
+                int value = (i - low) * 255 / range;
+                lut[i] = (byte) Math.max(0, Math.min(255, value));
+            }
+            applyLut(luma, offset, rowStride, pixelStride, width, height, lut);
+        }
+    }
+
+    /**
+     * Spreads the luma histogram evenly, which brings out codes printed in a narrow
+     * band of greys such as thermal labels.
+     */
+    static class HistogramEqualization implements FrameProcessor {
+        private final int[] histogram = new int[256];
+        private final byte[] lut = new byte[256];
+
+        @Override
+        public String name() {
+            return EQUALIZE_HISTOGRAM;
+        }
+
+        @Override
+        public void process(byte[] luma, int offset, int rowStride, int pixelStride, int width, int height) {
+            int count = histogram(luma, offset, rowStride, pixelStride, width, height, histogram);
+
+            int firstCount = 0;
+            for (int i = 0; i < 256; ++i) {
+                if (histogram[i] != 0) {
+                    firstCount = histogram[i];
+                    break;
+                }
+            }
+            long remaining = count - firstCount;
+            if (remaining <= 0) {
+                return;
+            }
+
+            long cumulative = 0;
+            for (int i = 0; i < 256; ++i) {
+                cumulative += histogram[i];
+                lut[i] = (byte) Math.max(0, (cumulative - firstCount) * 255 / remaining);
+            }
+            applyLut(luma, offset, rowStride, pixelStride, width, height, lut);
+        }
+    }
+
+    /**
+     * Thresholds each pixel against the mean of the blocks around it, which copes
+     * with glare and shadows falling across a code where one global threshold can't.
+     * Blocks with too little contrast to hold any code are taken as background.
+     */
+    static class AdaptiveBinarization implements FrameProcessor {
+        // blocks spanning less than this range of luma count as flat
+        private static final int MIN_CONTRAST = 24;
+
+        private final int blockSize;
+        private int[] blockMeans = new int[0];
+
+        AdaptiveBinarization(int blockSize) {
+            this.blockSize = Math.max(4, blockSize);
+        }
+
+        @Override
+        public String name() {
+            return BINARIZE;
+        }
+
+        @Override
+        public void process(byte[] luma, int offset, int rowStride, int pixelStride, int width, int height) {
+            int columns = (width + blockSize - 1) / blockSize;
+            int rows = (height + blockSize - 1) / blockSize;
+            if (blockMeans.length < columns * rows) {
+                // only grows, so a steady stream of frames allocates once.
+                blockMeans = new int[columns * rows];
+            }
+
+            for (int blockY = 0; blockY < rows; ++blockY) {
+                int top = blockY * blockSize;
+                int bottom = Math.min(height, top + blockSize);
+                for (int blockX = 0; blockX < columns; ++blockX) {
+                    int left = blockX * blockSize;
+                    int right = Math.min(width, left + blockSize);
+                    int sum = 0;
+                    int min = 255;
+                    int max = 0;
+                    for (int y = top; y < bottom; ++y) {
+                        int index = offset + y * rowStride + left * pixelStride;
+                        for (int x = left; x < right; ++x, index += pixelStride) {
+                            int value = luma[index] & 0xFF;
+                            sum += value;
+                            min = Math.min(min, value);
+                            max = Math.max(max, value);
+                        }
+                    }
+                    int mean = sum / ((bottom - top) * (right - left));
+                    // a flat block is most likely background, so everything in it reads as white.
+                    blockMeans[blockY * columns + blockX] = max - min < MIN_CONTRAST ? min / 2 : mean;
+                }
+            }
+
+            for (int blockY = 0; blockY < rows; ++blockY) {
+                int top = blockY * blockSize;
+                int bottom = Math.min(height, top + blockSize);
+                for (int blockX = 0; blockX < columns; ++blockX) {
+                    int left = blockX * blockSize;
+                    int right = Math.min(width, left + blockSize);
+                    int threshold = neighbourhoodMean(blockX, blockY, columns, rows);
+                    for (int y = top; y < bottom; ++y) {
+                        int index = offset + y * rowStride + left * pixelStride;
+                        for (int x = left; x < right; ++x, index += pixelStride) {
+                            luma[index] = (luma[index] & 0xFF) <= threshold ? 0 : (byte) 255;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Mean of the block and its neighbours, so thresholds don't jump at block edges.
+         */
+        private int neighbourhoodMean(int blockX, int blockY, int columns, int rows) {
+            int sum = 0;
+            int count = 0;
+            for (int y = Math.max(0, blockY - 1); y <= Math.min(rows - 1, blockY + 1); ++y) {
+                for (int x = Math.max(0, blockX - 1); x <= Math.min(columns - 1, blockX + 1); ++x) {
+                    sum += blockMeans[y * columns + x];
+                    count++;
+                }
+            }
+            return sum / count;
+        }
+    }
+
+    /**
+     * Swaps dark and light, for white on black codes the detector won't read as is.
+     */
+    static class Invert implements FrameProcessor {
+        @Override
+        public String name() {
+            return INVERT;
+        }
+
+        @Override
+        public void process(byte[] luma, int offset, int rowStride, int pixelStride, int width, int height) {
+            for (int y = 0; y < height; ++y) {
+                int index = offset + y * rowStride;
+                for (int x = 0; x < width; ++x, index += pixelStride) {
+                    luma[index] = (byte) ~luma[index];
+                }
+            }
+        }
+    }
+}
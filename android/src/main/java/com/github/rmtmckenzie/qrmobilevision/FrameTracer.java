@@ -0,0 +1,171 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Marks each phase of the frame pipeline with a systrace/perfetto section, and each
+ * frame's life from acquire to delivery with an async slice keyed by its timestamp.
+ * <p>
+ * Optionally the phases are also kept as spans in a fixed size ring buffer, which
+ * can be written out as a Chrome trace JSON file for looking at field traces. The
+ * buffer is preallocated; recording a span allocates nothing.
+ */
+class FrameTracer {
+    static final int ACQUIRE = 0;
+    static final int COPY = 1;
+    static final int CONVERT = 2;
+    static final int PREPROCESS = 3;
+    static final int DETECT = 4;
+    static final int MARSHAL = 5;
+    static final int SEND = 6;
+
+    private static final String[] PHASES = {"acquire", "copy", "convert", "preprocess", "detect", "marshal", "send"};
+    private static final String[] SECTIONS = {
+        "qrmv.acquire", "qrmv.copy", "qrmv.convert", "qrmv.preprocess", "qrmv.detect", "qrmv.marshal", "qrmv.send"
+    };
+    private static final String FRAME_SECTION = "qrmv.frame";
+
+    private final int capacity;
+    private final long[] frameIds;
+    private final long[] starts;
+    private final long[] durations;
+    private final byte[] phases;
+    private final int[] threadIds;
+    private int next;
+    private long recorded;
+
+    /**
+     * @param capacity - spans kept for writeChromeTrace, 0 to only mark trace sections
+     */
+    FrameTracer(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        this.frameIds = new long[this.capacity];
+        this.starts = new long[this.capacity];
+        this.durations = new long[this.capacity];
+        this.phases = new byte[this.capacity];
+        this.threadIds = new int[this.capacity];
+    }
+
+    /**
+     * Open the phase's trace section on this thread.
+     *
+     * @return the start time to hand to end
+     */
+    long begin(int phase) {
+        Trace.beginSection(SECTIONS[phase]);
+        return System.nanoTime();
+    }
+
+    /**
+     * Close the section begin opened on this thread, and record the span.
+     */
+    void end(int phase, long frameId, long start) {
+        long end = System.nanoTime();
+        Trace.endSection();
+        if (capacity == 0) {
+            return;
+        }
+        int tid = Process.myTid();
+        synchronized (this) {
+            frameIds[next] = frameId;
+            starts[next] = start;
+            durations[next] = end - start;
+            phases[next] = (byte) phase;
+            threadIds[next] = tid;
+            next = (next + 1) % capacity;
+            recorded++;
+        }
+    }
+
+    /**
+     * Start the async slice of a frame, which may end on another thread.
+     */
+    void beginFrame(long frameId) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(FRAME_SECTION, cookie(frameId));
+        }
+    }
+
+    /**
+     * End a frame's async slice, once its results are sent or it is dropped.
+     */
+    void endFrame(long frameId) {
+        // 0 is a slot with no frame in it.
+        if (frameId != 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(FRAME_SECTION, cookie(frameId));
+        }
+    }
+
+    private static int cookie(long frameId) {
+        return (int) (frameId ^ (frameId >>> 32));
+    }
+
+    boolean isRecording() {
+        return capacity > 0;
+    }
+
+    /**
+     * Write the recorded spans, oldest first, as complete events of the Chrome trace
+     * event format; chrome://tracing and ui.perfetto.dev both open it.
+     */
+    void writeChromeTrace(File file) throws IOException {
+        long[] frameIds;
+        long[] starts;
+        long[] durations;
+        byte[] phases;
+        int[] threadIds;
+        int count;
+        int first;
+        synchronized (this) {
+            // copied so recording can carry on while the file is written.
+            frameIds = this.frameIds.clone();
+            starts = this.starts.clone();
+            durations = this.durations.clone();
+            phases = this.phases.clone();
+            threadIds = this.threadIds.clone();
+            count = (int) Math.min(recorded, capacity);
+            first = recorded > capacity ? next : 0;
+        }
+
+        int pid = Process.myPid();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8")))) {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            for (int i = 0; i < count; ++i) {
+                int index = (first + i) % capacity;
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write("\n{\"name\":\"");
+                writer.write(PHASES[phases[index]]);
+                writer.write("\",\"cat\":\"qrmv\",\"ph\":\"X\",\"ts\":");
+                writer.write(Double.toString(starts[index] / 1e3));
+                writer.write(",\"dur\":");
+                writer.write(Double.toString(durations[index] / 1e3));
+                writer.write(",\"pid\":");
+                writer.write(Integer.toString(pid));
+                writer.write(",\"tid\":");
+                writer.write(Integer.toString(threadIds[index]));
+                writer.write(",\"args\":{\"frame\":");
+                writer.write(Long.toString(frameIds[index]));
+                writer.write("}}");
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    long getRecorded() {
+        synchronized (this) {
+            return recorded;
+        }
+    }
+}
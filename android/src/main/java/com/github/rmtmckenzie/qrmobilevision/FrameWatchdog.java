@@ -0,0 +1,227 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Notices when the camera stops delivering frames, or reports an error, and drives
+ * recovery: first by recreating the capture session, then by reopening the device,
+ * waiting twice as long between each attempt up to a maximum.
+ * <p>
+ * Every step is reported as an event, and recovery durations are kept for the
+ * stats. Only used from the main thread.
+ */
+class FrameWatchdog {
+    static final String ACTION_SESSION = "session";
+    static final String ACTION_DEVICE = "device";
+
+    // session recreations tried before moving on to reopening the device
+    private static final int SESSION_ATTEMPTS = 2;
+
+    interface Recovery {
+        void recreateSession();
+
+        void reopenDevice();
+    }
+
+    interface Listener {
+        void onRecoveryEvent(Map<String, Object> event);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final long timeoutMillis;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Recovery recovery;
+    private Listener listener;
+
+    private boolean running;
+    private boolean paused;
+    private long lastFrame;
+
+    private boolean recovering;
+    private String cause;
+    private long recoveryStart;
+    private long nextAttempt;
+    private int attempts;
+
+    private long stalls;
+    private long errors;
+    private long recoveries;
+    private long recoveryAttempts;
+    private long lastRecoveryMillis;
+    private long maxRecoveryMillis;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            check();
+        }
+    };
+
+    /**
+     * @param timeoutMillis        - time without frames after which the camera counts as stalled
+     * @param initialBackoffMillis - wait before the second attempt, doubled for each one after
+     * @param maxBackoffMillis     - longest wait between attempts
+     */
+    FrameWatchdog(long timeoutMillis, long initialBackoffMillis, long maxBackoffMillis, Recovery recovery) {
+        this.timeoutMillis = timeoutMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = Math.max(initialBackoffMillis, maxBackoffMillis);
+        this.recovery = recovery;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    void start() {
+        running = true;
+        recovering = false;
+        lastFrame = SystemClock.elapsedRealtime();
+        schedule();
+    }
+
+    void stop() {
+        running = false;
+        recovering = false;
+        handler.removeCallbacks(check);
+    }
+
+    /**
+     * No frames are expected while detection is paused, so stalls aren't looked for.
+     */
+    void setPaused(boolean paused) {
+        this.paused = paused;
+        lastFrame = SystemClock.elapsedRealtime();
+    }
+
+    void onFrame() {
+        lastFrame = SystemClock.elapsedRealtime();
+        if (recovering) {
+            onRecovered();
+        }
+    }
+
+    /**
+     * A new session is up. While paused that is all there is to see of a recovery.
+     */
+    void onSessionConfigured() {
+        if (recovering && paused) {
+            onRecovered();
+        }
+    }
+
+    /**
+     * The camera reported a problem.
+     *
+     * @param deviceLost - the device itself is gone, so recreating the session won't help
+     */
+    void onError(String cause, boolean deviceLost) {
+        if (!running) {
+            return;
+        }
+        errors++;
+        if (!recovering) {
+            beginRecovery(cause, "error");
+        }
+        if (deviceLost) {
+            attempts = Math.max(attempts, SESSION_ATTEMPTS);
+        }
+        nextAttempt = SystemClock.elapsedRealtime() + backoff();
+        schedule();
+    }
+
+    private void check() {
+        if (!running) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (!recovering && !paused && now - lastFrame >= timeoutMillis) {
+            stalls++;
+            beginRecovery("noFrames", "stall");
+            nextAttempt = now;
+        }
+        if (recovering && now >= nextAttempt) {
+            attempt(now);
+        }
+        schedule();
+    }
+
+    private void beginRecovery(String cause, String event) {
+        recovering = true;
+        this.cause = cause;
+        recoveryStart = SystemClock.elapsedRealtime();
+        attempts = 0;
+        report(event, null);
+    }
+
+    private void attempt(long now) {
+        attempts++;
+        recoveryAttempts++;
+        // give this attempt a full timeout to produce a frame before the next one.
+        nextAttempt = now + timeoutMillis + backoff();
+        if (attempts <= SESSION_ATTEMPTS) {
+            report("recoveryAttempt", ACTION_SESSION);
+            recovery.recreateSession();
+        } else {
+            report("recoveryAttempt", ACTION_DEVICE);
+            recovery.reopenDevice();
+        }
+    }
+
+    private void onRecovered() {
+        long duration = SystemClock.elapsedRealtime() - recoveryStart;
+        recovering = false;
+        recoveries++;
+        lastRecoveryMillis = duration;
+        maxRecoveryMillis = Math.max(maxRecoveryMillis, duration);
+        report("recovered", null);
+    }
+
+    private long backoff() {
+        if (attempts == 0) {
+            return 0;
+        }
+        long backoff = initialBackoffMillis << Math.min(attempts - 1, 16);
+        return Math.min(backoff, maxBackoffMillis);
+    }
+
+    private void schedule() {
+        handler.removeCallbacks(check);
+        if (running) {
+            handler.postDelayed(check, Math.max(1, Math.min(timeoutMillis / 2, nextAttemptDelay())));
+        }
+    }
+
+    private long nextAttemptDelay() {
+        return recovering ? Math.max(1, nextAttempt - SystemClock.elapsedRealtime()) : Long.MAX_VALUE;
+    }
+
+    private void report(String event, String action) {
+        if (listener == null) {
+            return;
+        }
+        Map<String, Object> map = new HashMap<>();
+        map.put("event", event);
+        map.put("cause", cause);
+        map.put("action", action);
+        map.put("attempt", attempts);
+        map.put("durationMillis", SystemClock.elapsedRealtime() - recoveryStart);
+        listener.onRecoveryEvent(map);
+    }
+
+    void putStats(Map<String, Object> stats) {
+        stats.put("cameraStalls", stalls);
+        stats.put("cameraErrors", errors);
+        stats.put("recoveryAttempts", recoveryAttempts);
+        stats.put("recoveries", recoveries);
+        stats.put("lastRecoveryMillis", lastRecoveryMillis);
+        stats.put("maxRecoveryMillis", maxRecoveryMillis);
+        stats.put("recovering", recovering);
+    }
+}
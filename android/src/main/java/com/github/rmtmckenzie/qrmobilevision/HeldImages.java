@@ -0,0 +1,184 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Hands camera Images to the detection worker still open, so the luma plane can be
+ * decoded straight from the camera's buffer instead of being copied to the heap and
+ * converted first.
+ * <p>
+ * At most one image waits while another is decoded, and never more than the image
+ * reader can spare: acquireLatestImage needs two images of its own, so holding
+ * more than maxImages - 2 would starve the camera.
+ */
+class HeldImages {
+    private static final String TAG = "cgl.fqs.HeldImages";
+    // one being decoded, one waiting
+    static final int MAX_HELD = 2;
+
+    private final FrameTracer tracer;
+    private final Object lock = new Object();
+    private Image pending;
+    private int pendingOrientation;
+    private final int[] pendingThumbnail = new int[SceneChangeDetector.GRID_SIZE];
+    private Image decoding;
+    private int maxHeld;
+
+    // copies of the taken image's details, only read on the worker
+    int takenOrientation;
+    final int[] takenThumbnail = new int[SceneChangeDetector.GRID_SIZE];
+
+    private long frames;
+    private long bytesAvoided;
+    private long firstFrameTime;
+
+    HeldImages(FrameTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Set from the image reader's maxImages.
+     */
+    void setReaderMaxImages(int maxImages) {
+        synchronized (lock) {
+            maxHeld = Math.max(0, Math.min(MAX_HELD, maxImages - MemoryBudget.MIN_MAX_IMAGES));
+        }
+    }
+
+    /**
+     * Whether the detector can read the image's luma plane as it is: packed rows, no
+     * padding, at least width * height bytes.
+     */
+    static boolean canDecodeDirectly(Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888) {
+            return false;
+        }
+        Image.Plane yPlane = image.getPlanes()[0];
+        return yPlane.getPixelStride() == 1 && yPlane.getRowStride() == image.getWidth()
+            && yPlane.getBuffer().capacity() >= image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Keep the image for the worker, replacing any image still waiting. Main thread only.
+     *
+     * @return whether the image was kept, in which case it is closed here and not by the caller
+     */
+    boolean offer(Image image, int orientation, int[] thumbnail) {
+        synchronized (lock) {
+            if (pending != null) {
+                tracer.endFrame(pending.getTimestamp());
+                pending.close();
+                pending = null;
+            }
+            int held = decoding != null ? 1 : 0;
+            if (held >= maxHeld) {
+                return false;
+            }
+            pending = image;
+            pendingOrientation = orientation;
+            System.arraycopy(thumbnail, 0, pendingThumbnail, 0, SceneChangeDetector.GRID_SIZE);
+
+            long now = SystemClock.elapsedRealtime();
+            if (frames == 0) {
+                firstFrameTime = now;
+            }
+            frames++;
+            bytesAvoided += copyBytes(image);
+            return true;
+        }
+    }
+
+    /**
+     * Take the waiting image for decoding, or null. Worker only; the image must be
+     * given back with release.
+     */
+    Image take() {
+        synchronized (lock) {
+            Image image = pending;
+            if (image != null) {
+                pending = null;
+                decoding = image;
+                takenOrientation = pendingOrientation;
+                System.arraycopy(pendingThumbnail, 0, takenThumbnail, 0, SceneChangeDetector.GRID_SIZE);
+            }
+            return image;
+        }
+    }
+
+    void release(Image image) {
+        image.close();
+        synchronized (lock) {
+            if (decoding == image) {
+                decoding = null;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    void dropPending() {
+        synchronized (lock) {
+            if (pending != null) {
+                tracer.endFrame(pending.getTimestamp());
+                pending.close();
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * Close the waiting image and wait for the one being decoded, before the reader
+     * they came from is closed and frees their buffers. Main thread only.
+     */
+    void drain(long timeoutMillis) {
+        long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        synchronized (lock) {
+            if (pending != null) {
+                tracer.endFrame(pending.getTimestamp());
+                pending.close();
+                pending = null;
+            }
+            while (decoding != null) {
+                long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    Log.w(TAG, "Image still being decoded after " + timeoutMillis + "ms");
+                    return;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * What the copying path would have moved for the image: every plane into the heap,
+     * then the frame again into an NV21 buffer.
+     */
+    private static long copyBytes(Image image) {
+        long bytes = 0;
+        for (Image.Plane plane : image.getPlanes()) {
+            ByteBuffer buffer = plane.getBuffer();
+            bytes += buffer.capacity();
+        }
+        return bytes + (long) image.getWidth() * image.getHeight() * 3 / 2;
+    }
+
+    void putStats(Map<String, Object> stats) {
+        synchronized (lock) {
+            long elapsed = frames == 0 ? 0 : SystemClock.elapsedRealtime() - firstFrameTime;
+            stats.put("zeroCopyFrames", frames);
+            stats.put("zeroCopyBytesAvoided", bytesAvoided);
+            stats.put("zeroCopyBytesAvoidedPerSecond", elapsed == 0 ? 0.0 : bytesAvoided * 1000.0 / elapsed);
+            stats.put("zeroCopyMaxHeld", maxHeld);
+        }
+    }
+}
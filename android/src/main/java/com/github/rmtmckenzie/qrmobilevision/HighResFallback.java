@@ -0,0 +1,55 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+/**
+ * Decides when a single high resolution frame is worth capturing, for dense or
+ * small codes that preview resolution can't resolve.
+ * <p>
+ * The detector reports nothing for codes it can't decode, so a frame counts as a
+ * likely unresolved code when it is full of fine detail yet decodes to nothing.
+ * After enough of those in a row a capture is requested, at most once per cooldown.
+ */
+class HighResFallback {
+    private final int misses;
+    private final double minDetail;
+    private final long cooldownMillis;
+
+    private int detailedMisses;
+    private long lastRequest;
+
+    /**
+     * @param misses         - consecutive detailed frames without results before capturing
+     * @param minDetail      - variance of the Laplacian a frame needs to count as detailed
+     * @param cooldownMillis - minimum time between captures
+     */
+    HighResFallback(int misses, double minDetail, long cooldownMillis) {
+        this.misses = Math.max(1, misses);
+        this.minDetail = minDetail;
+        this.cooldownMillis = cooldownMillis;
+    }
+
+    /**
+     * Whether a frame with nothing found needs its detail measured at all.
+     */
+    boolean wantsDetail(long now) {
+        return lastRequest == 0 || now - lastRequest >= cooldownMillis;
+    }
+
+    /**
+     * Record a decoded full frame. Only called from the detection worker.
+     *
+     * @param detail - variance of the Laplacian of the frame, ignored if found
+     * @return whether to capture a high resolution frame now
+     */
+    boolean onFrame(boolean found, double detail, long now) {
+        if (found || detail < minDetail) {
+            detailedMisses = 0;
+            return false;
+        }
+        if (++detailedMisses < misses || !wantsDetail(now)) {
+            return false;
+        }
+        detailedMisses = 0;
+        lastRequest = now;
+        return true;
+    }
+}
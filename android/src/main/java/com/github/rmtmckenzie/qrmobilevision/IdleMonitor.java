@@ -0,0 +1,149 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Drops detection to an idle rate once nothing has been decoded for idleAfterMillis,
+ * and wakes it again as soon as the scene moves or a code shows up.
+ * <p>
+ * While idle, every frame that arrives, throttled or not, has a luma thumbnail sampled
+ * and compared with the one before; MIN_CHANGED_BLOCKS blocks moving by more than
+ * motionThreshold counts as motion. A decode, or a code seen that couldn't be decoded,
+ * wakes it too. Main thread only.
+ */
+class IdleMonitor {
+    static final int WAKE_MOTION = 0;
+    static final int WAKE_DECODE = 1;
+    static final int WAKE_PARTIAL = 2;
+
+    // so a single noisy block doesn't wake it
+    private static final int MIN_CHANGED_BLOCKS = 4;
+
+    interface Listener {
+        void onIdleChanged(boolean idle);
+    }
+
+    private final long idleAfterMillis;
+    private final int motionThreshold;
+    private final Listener listener;
+
+    private int[] previous = new int[SceneChangeDetector.GRID_SIZE];
+    private int[] current = new int[SceneChangeDetector.GRID_SIZE];
+    private boolean hasPrevious;
+    private boolean idle;
+    private long lastActivity;
+    private long stateSince;
+    private long idleMillis;
+    private long activeMillis;
+    private long idleEntries;
+    private final long[] wakes = new long[3];
+
+    /**
+     * @param idleAfterMillis - time without a decode before going idle
+     * @param motionThreshold - difference in mean luma a block needs to count as moved
+     */
+    IdleMonitor(long idleAfterMillis, int motionThreshold, Listener listener) {
+        this.idleAfterMillis = idleAfterMillis;
+        this.motionThreshold = motionThreshold;
+        this.listener = listener;
+    }
+
+    /**
+     * Start over as active, as when the camera starts or detection resumes.
+     */
+    void reset(long now) {
+        lastActivity = now;
+        if (idle) {
+            setIdle(false, now);
+        } else if (stateSince == 0) {
+            stateSince = now;
+        }
+    }
+
+    /**
+     * Called for every frame that arrives, before any throttling.
+     */
+    void onFrame(ByteBuffer yPlane, int rowStride, int pixelStride, int width, int height, long now) {
+        if (!idle) {
+            if (now - lastActivity >= idleAfterMillis) {
+                hasPrevious = false;
+                setIdle(true, now);
+            } else {
+                return;
+            }
+        }
+
+        SceneChangeDetector.sampleThumbnail(yPlane, rowStride, pixelStride, width, height, current);
+        boolean moved = false;
+        if (hasPrevious) {
+            int changedBlocks = 0;
+            for (int i = 0; i < SceneChangeDetector.GRID_SIZE; ++i) {
+                if (Math.abs(current[i] - previous[i]) > motionThreshold && ++changedBlocks >= MIN_CHANGED_BLOCKS) {
+                    moved = true;
+                    break;
+                }
+            }
+        }
+        int[] swap = previous;
+        previous = current;
+        current = swap;
+        hasPrevious = true;
+        if (moved) {
+            wake(WAKE_MOTION, now);
+        }
+    }
+
+    /**
+     * Called once a frame has been decoded.
+     */
+    void onDecoded(boolean found, long now) {
+        if (found) {
+            wake(WAKE_DECODE, now);
+        }
+    }
+
+    /**
+     * Called when a code was seen that couldn't be decoded yet.
+     */
+    void onPartial(long now) {
+        wake(WAKE_PARTIAL, now);
+    }
+
+    private void wake(int reason, long now) {
+        lastActivity = now;
+        if (idle) {
+            ++wakes[reason];
+            setIdle(false, now);
+        }
+    }
+
+    private void setIdle(boolean idle, long now) {
+        if (this.idle) {
+            idleMillis += now - stateSince;
+        } else if (stateSince != 0) {
+            activeMillis += now - stateSince;
+        }
+        stateSince = now;
+        this.idle = idle;
+        if (idle) {
+            ++idleEntries;
+        }
+        listener.onIdleChanged(idle);
+    }
+
+    boolean isIdle() {
+        return idle;
+    }
+
+    void putStats(Map<String, Object> stats, long now) {
+        long inState = stateSince == 0 ? 0 : now - stateSince;
+        stats.put("idle", idle);
+        stats.put("idleMillis", idleMillis + (idle ? inState : 0));
+        stats.put("activeMillis", activeMillis + (idle ? 0 : inState));
+        stats.put("idleEntries", idleEntries);
+        stats.put("idleWakesMotion", wakes[WAKE_MOTION]);
+        stats.put("idleWakesDecode", wakes[WAKE_DECODE]);
+        stats.put("idleWakesPartial", wakes[WAKE_PARTIAL]);
+    }
+}
@@ -0,0 +1,269 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Accumulates the unique codes seen in a session, with how many frames each was
+ * seen in and when it was first and last seen.
+ * <p>
+ * Storage is kept compact for sessions with tens of thousands of codes: an open
+ * addressing table of 64 bit value hashes pointing into parallel primitive arrays,
+ * with the values themselves interned as UTF-8 in a single byte array.
+ * <p>
+ * Changes are pushed to Dart as deltas: new codes straight away, count updates at
+ * most every deltaIntervalMillis. Only used from the main thread.
+ */
+class InventoryStore {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_CAPACITY = 256;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final QrReaderEvents listener;
+    private final long deltaIntervalMillis;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunner = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // hash table; slots hold entry index + 1 so that 0 means empty
+    private long[] slotHashes;
+    private int[] slots;
+
+    // entries, in the order they were first seen
+    private int size;
+    private int[] valueOffsets;
+    private int[] valueLengths;
+    private int[] counts;
+    private long[] firstSeen;
+    private long[] lastSeen;
+
+    private byte[] values;
+    private int valuesLength;
+
+    private int[] dirty;
+    private int dirtyCount;
+    private boolean[] isDirty;
+    private boolean hasNewEntries;
+    private long lastFlush;
+
+    InventoryStore(QrReaderEvents listener, long deltaIntervalMillis) {
+        this.listener = listener;
+        this.deltaIntervalMillis = deltaIntervalMillis;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        slotHashes = new long[capacity * 2];
+        slots = new int[capacity * 2];
+        valueOffsets = new int[capacity];
+        valueLengths = new int[capacity];
+        counts = new int[capacity];
+        firstSeen = new long[capacity];
+        lastSeen = new long[capacity];
+        dirty = new int[capacity];
+        isDirty = new boolean[capacity];
+        values = new byte[capacity * 16];
+        size = 0;
+        valuesLength = 0;
+        dirtyCount = 0;
+        hasNewEntries = false;
+    }
+
+    /**
+     * Record that value was seen at time.
+     */
+    void add(String value, long time) {
+        byte[] bytes = value.getBytes(UTF_8);
+        long hash = hash(bytes);
+        int mask = slots.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+
+        while (slots[slot] != 0) {
+            int entry = slots[slot] - 1;
+            if (slotHashes[slot] == hash && valueEquals(entry, bytes)) {
+                counts[entry]++;
+                lastSeen[entry] = time;
+                markDirty(entry);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == counts.length) {
+            grow();
+            add(value, time);
+            return;
+        }
+
+        int entry = size++;
+        if (valuesLength + bytes.length > values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, valuesLength + bytes.length));
+        }
+        System.arraycopy(bytes, 0, values, valuesLength, bytes.length);
+        valueOffsets[entry] = valuesLength;
+        valueLengths[entry] = bytes.length;
+        valuesLength += bytes.length;
+        counts[entry] = 1;
+        firstSeen[entry] = time;
+        lastSeen[entry] = time;
+
+        slotHashes[slot] = hash;
+        slots[slot] = entry + 1;
+        hasNewEntries = true;
+        markDirty(entry);
+    }
+
+    /**
+     * Push what has changed if there are new codes or the delta interval has passed,
+     * otherwise make sure it gets pushed once the interval is up.
+     */
+    void maybeFlush() {
+        if (dirtyCount == 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (hasNewEntries || now - lastFlush >= deltaIntervalMillis) {
+            flush();
+        } else {
+            handler.removeCallbacks(flushRunner);
+            handler.postDelayed(flushRunner, deltaIntervalMillis - (now - lastFlush));
+        }
+    }
+
+    private void flush() {
+        handler.removeCallbacks(flushRunner);
+        if (dirtyCount == 0) {
+            return;
+        }
+        List<Map<String, Object>> delta = new ArrayList<>(dirtyCount);
+        for (int i = 0; i < dirtyCount; ++i) {
+            delta.add(entryToMap(dirty[i]));
+            isDirty[dirty[i]] = false;
+        }
+        dirtyCount = 0;
+        hasNewEntries = false;
+        lastFlush = SystemClock.elapsedRealtime();
+        listener.inventoryDelta(delta);
+    }
+
+    /**
+     * Entries in the order they were first seen, starting at offset.
+     */
+    Map<String, Object> page(int offset, int limit) {
+        int start = Math.max(0, Math.min(offset, size));
+        int end = Math.min(size, start + Math.max(0, limit));
+        List<Map<String, Object>> entries = new ArrayList<>(end - start);
+        for (int entry = start; entry < end; ++entry) {
+            entries.add(entryToMap(entry));
+        }
+
+        Map<String, Object> page = new HashMap<>();
+        page.put("total", size);
+        page.put("offset", start);
+        page.put("entries", entries);
+        return page;
+    }
+
+    void clear() {
+        handler.removeCallbacks(flushRunner);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    void release() {
+        handler.removeCallbacks(flushRunner);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Bytes held by the store's arrays, including unused capacity.
+     */
+    long memoryBytes() {
+        return slotHashes.length * 8L
+            + slots.length * 4L
+            + counts.length * (4L + 4L + 4L + 8L + 8L + 4L + 1L)
+            + values.length;
+    }
+
+    private void markDirty(int entry) {
+        if (!isDirty[entry]) {
+            isDirty[entry] = true;
+            dirty[dirtyCount++] = entry;
+        }
+    }
+
+    private void grow() {
+        int capacity = counts.length * 2;
+        valueOffsets = Arrays.copyOf(valueOffsets, capacity);
+        valueLengths = Arrays.copyOf(valueLengths, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        firstSeen = Arrays.copyOf(firstSeen, capacity);
+        lastSeen = Arrays.copyOf(lastSeen, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        isDirty = Arrays.copyOf(isDirty, capacity);
+
+        // rehash into a table twice the size
+        long[] oldHashes = slotHashes;
+        int[] oldSlots = slots;
+        slotHashes = new long[capacity * 2];
+        slots = new int[capacity * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < oldSlots.length; ++i) {
+            if (oldSlots[i] == 0) continue;
+            long hash = oldHashes[i];
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slotHashes[slot] = hash;
+            slots[slot] = oldSlots[i];
+        }
+    }
+
+    private boolean valueEquals(int entry, byte[] bytes) {
+        if (valueLengths[entry] != bytes.length) {
+            return false;
+        }
+        int offset = valueOffsets[entry];
+        for (int i = 0; i < bytes.length; ++i) {
+            if (values[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<String, Object> entryToMap(int entry) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("rawValue", new String(values, valueOffsets[entry], valueLengths[entry], UTF_8));
+        map.put("count", counts[entry]);
+        map.put("firstSeen", firstSeen[entry]);
+        map.put("lastSeen", lastSeen[entry]);
+        return map;
+    }
+
+    private static long hash(byte[] bytes) {
+        // FNV-1a
+        long hash = FNV_OFFSET;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
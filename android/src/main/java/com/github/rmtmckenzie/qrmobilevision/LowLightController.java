@@ -0,0 +1,146 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.util.Arrays;
+
+/**
+ * Decides when to brighten the image for dim scenes, from the luma of the frames
+ * being decoded. Steps up from normal exposure to raised exposure compensation to
+ * the torch, and back down again.
+ * <p>
+ * A step only happens once the scene has been dark (or bright) for holdFrames frames
+ * in a row, and never sooner than MIN_DWELL_MILLIS after the last one, so a passing
+ * shadow doesn't make the torch flicker. With the torch on the scene mostly shows
+ * what the torch lights up, so it needs to be a lot brighter to step back down.
+ */
+class LowLightController {
+    static final int STAGE_NORMAL = 0;
+    static final int STAGE_EXPOSURE = 1;
+    static final int STAGE_TORCH = 2;
+
+    // luma is sampled on a grid roughly this many points wide
+    private static final int GRID_WIDTH = 80;
+    private static final int HISTOGRAM_BINS = 16;
+    private static final long MIN_DWELL_MILLIS = 2000;
+
+    private final int darkLuma;
+    private final int brightLuma;
+    private final int torchOffLuma;
+    private final int holdFrames;
+    private final int[] histogram = new int[HISTOGRAM_BINS];
+
+    private volatile int maxStage = STAGE_TORCH;
+    private int stage = STAGE_NORMAL;
+    private int darkFrames;
+    private int brightFrames;
+    private long lastChange;
+    private volatile int meanLuma;
+    private volatile int brightLumaPercentile;
+
+    /**
+     * @param darkLuma     - mean luma below which the scene counts as dark
+     * @param brightLuma   - mean luma above which raised exposure is dropped again
+     * @param torchOffLuma - mean luma above which the torch is turned off again
+     * @param holdFrames   - consecutive frames a condition must hold before stepping
+     */
+    LowLightController(int darkLuma, int brightLuma, int torchOffLuma, int holdFrames) {
+        this.darkLuma = darkLuma;
+        this.brightLuma = Math.max(brightLuma, darkLuma + 1);
+        this.torchOffLuma = Math.max(torchOffLuma, this.brightLuma);
+        this.holdFrames = Math.max(1, holdFrames);
+    }
+
+    /**
+     * Highest stage the camera can do: STAGE_NORMAL without exposure compensation,
+     * STAGE_EXPOSURE without a torch.
+     */
+    void setMaxStage(int maxStage) {
+        this.maxStage = maxStage;
+    }
+
+    /**
+     * Sample the luma plane and update the stage. Only called from the detection worker.
+     *
+     * @return the new stage if it changed, otherwise -1
+     */
+    int onFrame(byte[] luma, int rowStride, int pixelStride, int width, int height, long now) {
+        measure(luma, rowStride, pixelStride, width, height);
+
+        // a dark scene with a brightly lit code in it decodes fine as it is.
+        boolean dark = meanLuma < darkLuma && brightLumaPercentile < brightLuma;
+        boolean bright = meanLuma > (stage == STAGE_TORCH ? torchOffLuma : brightLuma);
+        darkFrames = dark ? darkFrames + 1 : 0;
+        brightFrames = bright ? brightFrames + 1 : 0;
+        if (now - lastChange < MIN_DWELL_MILLIS) {
+            return -1;
+        }
+
+        int next = stage;
+        if (stage > maxStage) {
+            next = maxStage;
+        } else if (darkFrames >= holdFrames && stage < maxStage) {
+            next = stage + 1;
+        } else if (brightFrames >= holdFrames && stage > STAGE_NORMAL) {
+            next = stage - 1;
+        }
+        if (next == stage) {
+            return -1;
+        }
+
+        stage = next;
+        darkFrames = 0;
+        brightFrames = 0;
+        lastChange = now;
+        return stage;
+    }
+
+    private void measure(byte[] luma, int rowStride, int pixelStride, int width, int height) {
+        int step = Math.max(1, width / GRID_WIDTH);
+        Arrays.fill(histogram, 0);
+        long sum = 0;
+        int count = 0;
+        for (int y = step / 2; y < height; y += step) {
+            int row = y * rowStride;
+            for (int x = step / 2; x < width; x += step) {
+                int value = luma[row + x * pixelStride] & 0xFF;
+                sum += value;
+                histogram[value * HISTOGRAM_BINS / 256]++;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        meanLuma = (int) (sum / count);
+
+        // lower edge of the bin holding the brightest tenth of the samples
+        int remaining = count / 10;
+        int bin = HISTOGRAM_BINS - 1;
+        while (bin > 0 && (remaining -= histogram[bin]) > 0) {
+            bin--;
+        }
+        brightLumaPercentile = bin * 256 / HISTOGRAM_BINS;
+    }
+
+    int getStage() {
+        return stage;
+    }
+
+    int getMeanLuma() {
+        return meanLuma;
+    }
+
+    int getBrightLumaPercentile() {
+        return brightLumaPercentile;
+    }
+
+    static String stageName(int stage) {
+        switch (stage) {
+            case STAGE_EXPOSURE:
+                return "exposure";
+            case STAGE_TORCH:
+                return "torch";
+            default:
+                return "normal";
+        }
+    }
+}
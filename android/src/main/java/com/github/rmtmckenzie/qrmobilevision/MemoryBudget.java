@@ -0,0 +1,209 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.ComponentCallbacks2;
+import android.util.Size;
+
+/**
+ * Fits the scan pipeline's frame buffers into a memory budget: the frames held by
+ * the image reader, the detector's copies of them and the buffer each copy is
+ * converted into for decoding.
+ * <p>
+ * Reader images are given up first, then the detector's second frame slot, and only
+ * then decode resolution. Memory pressure reported through onTrimMemory halves or
+ * quarters the budget until the camera is started again; it never grows back while
+ * running. Without a budget the plain sizes are used until memory gets tight.
+ */
+class MemoryBudget {
+    static final int MAX_IMAGES = 5;
+    // acquireLatestImage needs one image to hold while discarding another
+    static final int MIN_MAX_IMAGES = 2;
+    static final int FRAME_SLOTS = 2;
+    // decode resolution isn't lowered past this many pixels on the long side
+    private static final int MIN_LONG_SIDE = 640;
+
+    static class Plan {
+        final int width;
+        final int height;
+        final int maxImages;
+        final int frameSlots;
+
+        Plan(int width, int height, int maxImages, int frameSlots) {
+            this.width = width;
+            this.height = height;
+            this.maxImages = maxImages;
+            this.frameSlots = frameSlots;
+        }
+
+        long bytes() {
+            return footprint(width, height, maxImages, frameSlots);
+        }
+
+        boolean sameAs(Plan other) {
+            return other != null && width == other.width && height == other.height
+                && maxImages == other.maxImages && frameSlots == other.frameSlots;
+        }
+    }
+
+    private final long budgetBytes;
+    private int trimShift;
+    private long currentLimit;
+
+    /**
+     * @param budgetBytes - bytes the frame buffers may take, 0 for no limit
+     */
+    MemoryBudget(long budgetBytes) {
+        this.budgetBytes = Math.max(0, budgetBytes);
+    }
+
+    /**
+     * Bytes of one YUV 420 frame in the reader.
+     */
+    static long readerFrameBytes(int width, int height) {
+        return (long) width * height * 3 / 2;
+    }
+
+    /**
+     * Bytes of the detector's copy of a frame: the luma plane, plus chroma planes that
+     * are usually interleaved and so each nearly as big as half the luma.
+     */
+    static long slotBytes(int width, int height) {
+        return (long) width * height * 2;
+    }
+
+    /**
+     * Bytes of the NV21 buffer a frame is converted into for the detector.
+     */
+    static long decodeBytes(int width, int height) {
+        return (long) width * height * 2;
+    }
+
+    static long footprint(int width, int height, int maxImages, int frameSlots) {
+        return maxImages * readerFrameBytes(width, height)
+            + frameSlots * slotBytes(width, height)
+            + decodeBytes(width, height);
+    }
+
+    /**
+     * The budget currently in force for a pipeline that would otherwise take
+     * unconstrainedBytes, or 0 if there is none.
+     */
+    long limit(long unconstrainedBytes) {
+        if (trimShift == 0) {
+            return budgetBytes;
+        }
+        long base = budgetBytes > 0 ? Math.min(budgetBytes, unconstrainedBytes) : unconstrainedBytes;
+        return base >> trimShift;
+    }
+
+    int getTrimShift() {
+        return trimShift;
+    }
+
+    /**
+     * The limit the last plan was made for, 0 if there was none.
+     */
+    long getCurrentLimit() {
+        return currentLimit;
+    }
+
+    /**
+     * Whether bytes fit the limit the last plan was made for.
+     */
+    boolean fits(long bytes) {
+        return currentLimit <= 0 || bytes <= currentLimit;
+    }
+
+    /**
+     * Shrink the budget for a trim level, main thread only.
+     *
+     * @return whether the budget got smaller, so the plan has to be redone
+     */
+    boolean onTrimMemory(int level) {
+        int shift;
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // only says the ui went out of view, not that memory is short.
+            return false;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            shift = 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            shift = 1;
+        } else {
+            return false;
+        }
+        if (shift <= trimShift) {
+            return false;
+        }
+        trimShift = shift;
+        return true;
+    }
+
+    /**
+     * The largest buffers fitting the budget. preferred is the size the reader would
+     * use without one, sizes every YUV size the camera supports; smaller sizes are
+     * only used if they keep preferred's aspect ratio.
+     */
+    Plan plan(Size preferred, Size[] sizes) {
+        int width = preferred.getWidth();
+        int height = preferred.getHeight();
+        long limit = limit(footprint(width, height, MAX_IMAGES, FRAME_SLOTS));
+        currentLimit = limit;
+        if (limit <= 0) {
+            return new Plan(width, height, MAX_IMAGES, FRAME_SLOTS);
+        }
+
+        Plan plan = fit(width, height, limit);
+        if (plan != null) {
+            return plan;
+        }
+        Size smallest = preferred;
+        while (true) {
+            Size next = nextSmaller(smallest, preferred, sizes);
+            if (next == null) {
+                break;
+            }
+            smallest = next;
+            plan = fit(next.getWidth(), next.getHeight(), limit);
+            if (plan != null) {
+                return plan;
+            }
+        }
+        // over budget however it's cut, so keep the least that still works.
+        return new Plan(smallest.getWidth(), smallest.getHeight(), MIN_MAX_IMAGES, 1);
+    }
+
+    private static Plan fit(int width, int height, long limit) {
+        for (int maxImages = MAX_IMAGES; maxImages >= MIN_MAX_IMAGES; --maxImages) {
+            if (footprint(width, height, maxImages, FRAME_SLOTS) <= limit) {
+                return new Plan(width, height, maxImages, FRAME_SLOTS);
+            }
+        }
+        if (footprint(width, height, MIN_MAX_IMAGES, 1) <= limit) {
+            return new Plan(width, height, MIN_MAX_IMAGES, 1);
+        }
+        return null;
+    }
+
+    /**
+     * The largest size below current with preferred's aspect ratio, or null.
+     */
+    private static Size nextSmaller(Size current, Size preferred, Size[] sizes) {
+        if (sizes == null) {
+            return null;
+        }
+        long currentArea = (long) current.getWidth() * current.getHeight();
+        Size best = null;
+        for (Size size : sizes) {
+            long area = (long) size.getWidth() * size.getHeight();
+            if (area >= currentArea
+                || Math.max(size.getWidth(), size.getHeight()) < MIN_LONG_SIDE
+                || Math.abs((double) size.getWidth() / size.getHeight()
+                - (double) preferred.getWidth() / preferred.getHeight()) > 0.01) {
+                continue;
+            }
+            if (best == null || area > (long) best.getWidth() * best.getHeight()) {
+                best = size;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,237 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+/**
+ * Steps detection down as the device heats up or battery saver comes on, and back
+ * up once conditions have stayed clear for a while.
+ * <p>
+ * Each level lowers the target decode rate further. From LEVEL_REDUCED the extra
+ * passes (tiles, high resolution captures) stop; from LEVEL_LOW frames are decoded
+ * at half resolution. Stepping down is immediate, stepping up goes one level at a
+ * time, each after stepUpMillis without a reason to stay. Thermal status and battery
+ * saver come from a StatusProvider, so a stand-in can drive it. Main thread only.
+ */
+class PowerScheduler {
+    static final int LEVEL_NORMAL = 0;
+    static final int LEVEL_REDUCED = 1;
+    static final int LEVEL_LOW = 2;
+    static final int LEVEL_MINIMAL = 3;
+
+    // decodes per second at each level, 0 for as many as frames arrive
+    private static final int[] TARGET_FPS = {0, 15, 10, 5};
+    private static final int[] DECODE_SCALE = {1, 1, 2, 2};
+    // how often power saver and stepping up are checked
+    private static final long POLL_MILLIS = 5000;
+
+    interface StatusProvider {
+        /**
+         * One of the PowerManager THERMAL_STATUS constants.
+         */
+        int getThermalStatus();
+
+        boolean isPowerSaveMode();
+
+        /**
+         * Call onChange whenever the status changes, if that can be known; it is
+         * polled either way.
+         */
+        void start(Runnable onChange);
+
+        void stop();
+    }
+
+    interface Listener {
+        void onLevelChanged(int level, int thermalStatus, boolean powerSave);
+    }
+
+    /**
+     * Status from the PowerManager. Thermal status needs API 29, before which it
+     * always reads as none.
+     */
+    static class SystemStatus implements StatusProvider {
+        private final PowerManager powerManager;
+        private PowerManager.OnThermalStatusChangedListener thermalListener;
+
+        SystemStatus(Context context) {
+            this.powerManager = (PowerManager) context.getApplicationContext().getSystemService(Context.POWER_SERVICE);
+        }
+
+        @Override
+        public int getThermalStatus() {
+            if (powerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                return PowerManager.THERMAL_STATUS_NONE;
+            }
+            return powerManager.getCurrentThermalStatus();
+        }
+
+        @Override
+        public boolean isPowerSaveMode() {
+            return powerManager != null && powerManager.isPowerSaveMode();
+        }
+
+        @Override
+        public void start(final Runnable onChange) {
+            if (powerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                return;
+            }
+            thermalListener = new PowerManager.OnThermalStatusChangedListener() {
+                @Override
+                public void onThermalStatusChanged(int status) {
+                    onChange.run();
+                }
+            };
+            powerManager.addThermalStatusListener(thermalListener);
+        }
+
+        @Override
+        public void stop() {
+            if (thermalListener != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                powerManager.removeThermalStatusListener(thermalListener);
+                thermalListener = null;
+            }
+        }
+    }
+
+    private final StatusProvider provider;
+    private final long stepUpMillis;
+    private final Listener listener;
+    // created on start, so the scheduler can be built and evaluated off a device
+    private Handler handler;
+    private boolean running;
+    private int level = LEVEL_NORMAL;
+    private long lastChange;
+    private int thermalStatus;
+    private boolean powerSave;
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            evaluate(SystemClock.elapsedRealtime());
+            handler.postDelayed(this, POLL_MILLIS);
+        }
+    };
+
+    PowerScheduler(StatusProvider provider, long stepUpMillis, Listener listener) {
+        this.provider = provider;
+        this.stepUpMillis = stepUpMillis;
+        this.listener = listener;
+    }
+
+    void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        if (handler == null) {
+            handler = new Handler(Looper.getMainLooper());
+        }
+        lastChange = SystemClock.elapsedRealtime();
+        provider.start(new Runnable() {
+            @Override
+            public void run() {
+                // the thermal listener may call from any thread.
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (running) {
+                            evaluate(SystemClock.elapsedRealtime());
+                        }
+                    }
+                });
+            }
+        });
+        poll.run();
+    }
+
+    void stop() {
+        running = false;
+        if (handler != null) {
+            handler.removeCallbacksAndMessages(null);
+        }
+        provider.stop();
+    }
+
+    /**
+     * Read the status and change level if needed. Called by the poll and status
+     * changes while running.
+     */
+    void evaluate(long now) {
+        thermalStatus = provider.getThermalStatus();
+        powerSave = provider.isPowerSaveMode();
+        int target = targetLevel(thermalStatus, powerSave);
+
+        int next = level;
+        if (target > level) {
+            next = target;
+        } else if (target < level && now - lastChange >= stepUpMillis) {
+            next = level - 1;
+        } else if (target == level) {
+            // nothing to step up from yet, the wait starts once conditions clear.
+            lastChange = now;
+        }
+        if (next != level) {
+            level = next;
+            lastChange = now;
+            listener.onLevelChanged(level, thermalStatus, powerSave);
+        }
+    }
+
+    /**
+     * The level conditions call for, before any wait to step up.
+     */
+    static int targetLevel(int thermalStatus, boolean powerSave) {
+        int level;
+        if (thermalStatus >= PowerManager.THERMAL_STATUS_CRITICAL) {
+            level = LEVEL_MINIMAL;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE) {
+            level = LEVEL_LOW;
+        } else if (thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE) {
+            level = LEVEL_REDUCED;
+        } else {
+            level = LEVEL_NORMAL;
+        }
+        return powerSave ? Math.max(level, LEVEL_REDUCED) : level;
+    }
+
+    static int targetFps(int level) {
+        return TARGET_FPS[level];
+    }
+
+    static int decodeScale(int level) {
+        return DECODE_SCALE[level];
+    }
+
+    static String levelName(int level) {
+        switch (level) {
+            case LEVEL_REDUCED:
+                return "reduced";
+            case LEVEL_LOW:
+                return "low";
+            case LEVEL_MINIMAL:
+                return "minimal";
+            default:
+                return "normal";
+        }
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    int getThermalStatus() {
+        return thermalStatus;
+    }
+
+    boolean isPowerSave() {
+        return powerSave;
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Rect;
+
+import com.google.android.gms.vision.Frame;
+
+/**
+ * Maps detector results to normalized coordinates of the preview as shown upright,
+ * 0,0 being the top left and 1,1 the bottom right.
+ * <p>
+ * The analysis stream and the preview each show the largest centred area of the
+ * crop region with their own aspect ratio, so they can cover slightly different parts
+ * of the sensor; points outside the preview come out below 0 or above 1. That works
+ * out to a scale and offset per axis in raw coordinates, computed once per
+ * configuration. Front facing previews are shown mirrored, so x is flipped for those.
+ * Immutable, so a new one is swapped in whole when the configuration changes.
+ */
+final class PreviewMapper {
+    private final int imageWidth;
+    private final int imageHeight;
+    private final boolean mirrored;
+    // raw analysis coordinates to raw normalized preview coordinates
+    private final double scaleX;
+    private final double offsetX;
+    private final double scaleY;
+    private final double offsetY;
+
+    /**
+     * @param imageWidth    - width of the analysis image
+     * @param imageHeight   - height of the analysis image
+     * @param previewWidth  - width of the preview texture buffer
+     * @param previewHeight - height of the preview texture buffer
+     * @param cropRegion    - current SCALER_CROP_REGION, in active array coordinates
+     * @param mirrored      - whether the preview is shown mirrored, as for front facing lenses
+     */
+    PreviewMapper(int imageWidth, int imageHeight, int previewWidth, int previewHeight, Rect cropRegion,
+                  boolean mirrored) {
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.mirrored = mirrored;
+
+        double cropWidth = cropRegion.width();
+        double cropHeight = cropRegion.height();
+        double[] image = visibleArea(cropWidth, cropHeight, imageWidth, imageHeight);
+        double[] preview = visibleArea(cropWidth, cropHeight, previewWidth, previewHeight);
+        scaleX = image[2] / imageWidth / preview[2];
+        offsetX = (image[0] - preview[0]) / preview[2];
+        scaleY = image[3] / imageHeight / preview[3];
+        offsetY = (image[1] - preview[1]) / preview[3];
+    }
+
+    /**
+     * The left, top, width and height of the part of the crop region a stream of the
+     * given size covers, relative to the crop region.
+     */
+    private static double[] visibleArea(double cropWidth, double cropHeight, int width, int height) {
+        double visibleWidth = cropWidth;
+        double visibleHeight = cropHeight;
+        if (cropWidth * height > cropHeight * width) {
+            visibleWidth = cropHeight * width / height;
+        } else {
+            visibleHeight = cropWidth * height / width;
+        }
+        return new double[]{(cropWidth - visibleWidth) / 2, (cropHeight - visibleHeight) / 2, visibleWidth, visibleHeight};
+    }
+
+    /**
+     * @param x        - x in the upright coordinates reported for a frame with the given rotation
+     * @param y        - y in the upright coordinates reported for a frame with the given rotation
+     * @param rotation - the frame's rotation, which the preview is shown upright with too
+     * @param out      - set to the normalized x and y in the upright preview
+     */
+    void toPreview(int x, int y, int rotation, double[] out) {
+        // back to raw coordinates, as FrameCoordinates.toRaw
+        double rawX;
+        double rawY;
+        switch (rotation) {
+            case Frame.ROTATION_90:
+                rawX = y;
+                rawY = imageHeight - x;
+                break;
+            case Frame.ROTATION_180:
+                rawX = imageWidth - x;
+                rawY = imageHeight - y;
+                break;
+            case Frame.ROTATION_270:
+                rawX = imageWidth - y;
+                rawY = x;
+                break;
+            default:
+                rawX = x;
+                rawY = y;
+                break;
+        }
+
+        double u = rawX * scaleX + offsetX;
+        double v = rawY * scaleY + offsetY;
+
+        // and upright again, in preview units
+        switch (rotation) {
+            case Frame.ROTATION_90:
+                out[0] = 1 - v;
+                out[1] = u;
+                break;
+            case Frame.ROTATION_180:
+                out[0] = 1 - u;
+                out[1] = 1 - v;
+                break;
+            case Frame.ROTATION_270:
+                out[0] = v;
+                out[1] = 1 - u;
+                break;
+            default:
+                out[0] = u;
+                out[1] = v;
+                break;
+        }
+        if (mirrored) {
+            out[0] = 1 - out[0];
+        }
+    }
+}
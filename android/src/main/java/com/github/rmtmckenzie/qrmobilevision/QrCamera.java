@@ -1,5 +1,8 @@
 package com.github.rmtmckenzie.qrmobilevision;
 
+import java.util.List;
+import java.util.Map;
+
 interface QrCamera {
     void start() throws QrReader.Exception;
     void stop();
@@ -11,4 +14,9 @@ interface QrCamera {
     int getCameraLensFacing();
     void setZoomFactor(Float zoomFactor);
     void setCameraLensFacing(Integer cameraLensFacing);
+    void pauseDetection();
+    void resumeDetection();
+    List<Map<String, Object>> getCameras();
+    void putStats(Map<String, Object> stats);
+    void trimMemory(int level);
 }
@@ -3,6 +3,7 @@ package com.github.rmtmckenzie.qrmobilevision;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -12,14 +13,21 @@ import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.OutputConfiguration;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.display.DisplayManager;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.util.SparseIntArray;
+import android.view.Display;
 import android.view.Surface;
-import android.view.WindowManager;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
@@ -29,6 +37,7 @@ import com.google.android.gms.vision.Frame;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_AUTO;
 import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE;
@@ -36,8 +45,6 @@ import static android.hardware.camera2.CameraMetadata.CONTROL_AF_MODE_CONTINUOUS
 import static android.hardware.camera2.CameraMetadata.LENS_FACING_BACK;
 import static android.hardware.camera2.CameraMetadata.LENS_FACING_FRONT;
 import static com.github.rmtmckenzie.qrmobilevision.CameraZoom.ZOOM_1X;
-import static com.github.rmtmckenzie.qrmobilevision.CameraZoom.ZOOM_2X;
-import static com.github.rmtmckenzie.qrmobilevision.CameraZoom.ZOOM_4X;
 
 /**
  * Implements QrCamera using Camera2 API
@@ -47,6 +54,8 @@ import static com.github.rmtmckenzie.qrmobilevision.CameraZoom.ZOOM_4X;
 class QrCameraC2 implements QrCamera {
 
     private static final String TAG = "cgr.qrmv.QrCameraC2";
+    // how long focus and metering stay on a code's region before going back to continuous
+    private static final long FOCUS_REGION_HOLD_MILLIS = 3000;
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
     static {
@@ -62,27 +71,152 @@ class QrCameraC2 implements QrCamera {
     private final SurfaceTexture texture;
     private Size size;
     private ImageReader reader;
+    private ImageReader highResReader;
+    private long highResBytes;
+    private final MemoryBudget memoryBudget;
+    private MemoryBudget.Plan memoryPlan;
+    private List<CameraSelector.Candidate> rankedCameras;
+    private CameraSelector.Candidate selectedCamera;
+    private Size[] yuvSizes;
     private CaptureRequest.Builder previewBuilder;
     private CameraCaptureSession previewSession;
     private Size[] jpegSizes = null;
     private QrDetector2 detector;
     private int sensorOrientation;
+    // Frame rotation for the current display rotation, kept up to date by displayListener
+    private int frameOrientation = Frame.ROTATION_0;
+    private final DisplayManager displayManager;
+    private final DisplayManager.DisplayListener displayListener = new DisplayManager.DisplayListener() {
+        @Override
+        public void onDisplayAdded(int displayId) {
+        }
+
+        @Override
+        public void onDisplayRemoved(int displayId) {
+        }
+
+        @Override
+        public void onDisplayChanged(int displayId) {
+            if (displayId == Display.DEFAULT_DISPLAY) {
+                updateFrameOrientation();
+            }
+        }
+    };
     private CameraDevice cameraDevice;
+    // bumped by each open and by stop, so a device opened for a superseded request is closed
+    private int openGeneration;
+    private CameraManager cameraManager;
+    private String cameraId;
+    private final FrameWatchdog watchdog;
+    private final PowerScheduler powerScheduler;
+    private PowerScheduler.Listener powerListener;
+    private int powerLevel = PowerScheduler.LEVEL_NORMAL;
+    private final IdleMonitor idleMonitor;
+    private boolean idle;
     private CameraCharacteristics cameraCharacteristics;
     private Integer cameraLensFacing;
     private boolean isFlashSupported;
     private boolean isTorchOn;
+    // torch turned on by low light control rather than toggleTorch
+    private boolean isAutoTorchOn;
+    private int exposureCompensationMax;
+    // set by low light control, carried over when the session is rebuilt
+    private int exposureCompensation;
     private CameraZoom cameraZoom;
     private float zoomFactor;
+    private final Handler handler = new Handler();
+    private final Runnable resetFocusRegion = new Runnable() {
+        @Override
+        public void run() {
+            resetFocusRegion();
+        }
+    };
+    private final DetectionOptions options;
+    private AutoZoom autoZoom;
+    private final Runnable resetAutoZoom = new Runnable() {
+        @Override
+        public void run() {
+            if (autoZoom != null) {
+                autoZoom.reset();
+                applyAutoZoom();
+            }
+        }
+    };
 
-    QrCameraC2(int width, int height, float zoomFactor, int cameraLensFacing, SurfaceTexture texture, Context context, QrDetector2 detector) {
+    QrCameraC2(int width, int height, float zoomFactor, int cameraLensFacing, SurfaceTexture texture, Context context,
+               QrDetector2 detector, DetectionOptions options) {
         this.targetWidth = width;
         this.targetHeight = height;
         this.context = context;
         this.texture = texture;
         this.detector = detector;
+        this.options = options;
         this.zoomFactor = zoomFactor;
         this.cameraLensFacing = cameraLensFacing;
+        this.memoryBudget = new MemoryBudget(options.memoryBudgetBytes);
+        this.displayManager = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        this.watchdog = options.watchdog ? new FrameWatchdog(options.frameTimeoutMillis,
+            options.recoveryBackoffMillis, options.maxRecoveryBackoffMillis, new FrameWatchdog.Recovery() {
+            @Override
+            public void recreateSession() {
+                closeSession();
+                if (cameraDevice != null) {
+                    startCamera();
+                } else {
+                    openDevice();
+                }
+            }
+
+            @Override
+            public void reopenDevice() {
+                closeSession();
+                if (cameraDevice != null) {
+                    cameraDevice.close();
+                    cameraDevice = null;
+                }
+                openDevice();
+            }
+        }) : null;
+        this.powerScheduler = options.powerAware ? new PowerScheduler(new PowerScheduler.SystemStatus(context),
+            options.powerStepUpMillis, new PowerScheduler.Listener() {
+            @Override
+            public void onLevelChanged(int level, int thermalStatus, boolean powerSave) {
+                setPowerLevel(level);
+                if (powerListener != null) {
+                    powerListener.onLevelChanged(level, thermalStatus, powerSave);
+                }
+            }
+        }) : null;
+        this.idleMonitor = options.idleMode ? new IdleMonitor(options.idleAfterMillis, options.idleMotionThreshold,
+            new IdleMonitor.Listener() {
+            @Override
+            public void onIdleChanged(boolean idle) {
+                setIdle(idle);
+            }
+        }) : null;
+        detector.setIdleMonitor(idleMonitor);
+        detector.setFocusListener(new QrDetector2.FocusListener() {
+            @Override
+            public void focusOn(Rect raw, int imageWidth, int imageHeight) {
+                focusOnRegion(raw, imageWidth, imageHeight);
+            }
+        });
+        if (options.highResFallback) {
+            detector.setHighResListener(new QrDetector2.HighResListener() {
+                @Override
+                public void captureHighRes() {
+                    QrCameraC2.this.captureHighRes();
+                }
+            });
+        }
+        if (options.autoZoom) {
+            detector.setZoomListener(new QrDetector2.ZoomListener() {
+                @Override
+                public void zoomTowards(Rect raw, int imageWidth, int imageHeight) {
+                    QrCameraC2.this.zoomTowards(raw, imageWidth, imageHeight);
+                }
+            });
+        }
     }
 
     @Override
@@ -106,9 +240,10 @@ class QrCameraC2 implements QrCamera {
     public void toggleTorch() {
         try {
             if (isFlashSupported) {
-                if (isTorchOn) {
+                if (isTorchOn || isAutoTorchOn) {
                     previewBuilder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_OFF);
                     isTorchOn = false;
+                    isAutoTorchOn = false;
                 } else {
                     previewBuilder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_TORCH);
                     isTorchOn = true;
@@ -131,25 +266,252 @@ class QrCameraC2 implements QrCamera {
         return cameraLensFacing;
     }
 
+    /**
+     * Any factor is accepted, and limited to what the camera supports. With auto zoom
+     * on this is the zoom it starts from and goes back to.
+     */
     @Override
     public void setZoomFactor(Float zoomFactor) {
-        if (zoomFactor != null) {
-            if (zoomFactor == ZOOM_1X) {
-                this.zoomFactor = ZOOM_1X;
-            } else if (zoomFactor == ZOOM_2X) {
-                this.zoomFactor = ZOOM_2X;
-            } else if (zoomFactor == ZOOM_4X) {
-                this.zoomFactor = ZOOM_4X;
-            } else {
-                return;
-            }
-            try {
-                cameraZoom.setZoom(previewBuilder, zoomFactor);
-                previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
-            } catch (CameraAccessException e) {
-                e.printStackTrace();
+        if (zoomFactor == null || zoomFactor.isNaN()) {
+            return;
+        }
+        this.zoomFactor = cameraZoom != null ? cameraZoom.clamp(zoomFactor) : Math.max(ZOOM_1X, zoomFactor);
+        if (previewSession == null) {
+            return;
+        }
+
+        if (autoZoom != null) {
+            handler.removeCallbacks(resetAutoZoom);
+            autoZoom.setBaseZoom(this.zoomFactor);
+        }
+        try {
+            cameraZoom.setZoom(previewBuilder, this.zoomFactor);
+            updatePreviewMapper();
+            previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Move the crop region a step towards framing codes found at raw in the analysis
+     * image, and go back to the set zoom factor once nothing has been found for a while.
+     */
+    private void zoomTowards(Rect raw, int imageWidth, int imageHeight) {
+        if (autoZoom == null || previewSession == null || cameraCharacteristics == null) {
+            return;
+        }
+        Rect activeArray = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        if (activeArray == null) {
+            return;
+        }
+        // the frame was captured with the crop region at the time, which can be a
+        // frame or two behind the current one; the smoothing absorbs the difference.
+        Rect cropRegion = previewBuilder.get(CaptureRequest.SCALER_CROP_REGION);
+        if (cropRegion == null) {
+            cropRegion = activeArray;
+        }
+
+        Rect sensorRegion = new Rect();
+        SensorCoordinateMapper.toSensor(raw, imageWidth, imageHeight, cropRegion, sensorRegion);
+        if (autoZoom.onCodes(sensorRegion, activeArray)) {
+            applyAutoZoom();
+        }
+
+        handler.removeCallbacks(resetAutoZoom);
+        handler.postDelayed(resetAutoZoom, options.autoZoomResetMillis);
+    }
+
+    /**
+     * Raise exposure compensation to its maximum from STAGE_EXPOSURE up, and turn
+     * the torch on at STAGE_TORCH. A torch turned on with toggleTorch is left alone.
+     */
+    private void setLightingStage(int stage) {
+        if (previewSession == null) {
+            return;
+        }
+        exposureCompensation = stage >= LowLightController.STAGE_EXPOSURE ? exposureCompensationMax : 0;
+        previewBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, exposureCompensation);
+        if (isFlashSupported && !isTorchOn) {
+            isAutoTorchOn = stage >= LowLightController.STAGE_TORCH;
+            previewBuilder.set(CaptureRequest.FLASH_MODE,
+                isAutoTorchOn ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF);
+        }
+        try {
+            previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void applyAutoZoom() {
+        if (previewSession == null) {
+            return;
+        }
+        cameraZoom.setZoom(previewBuilder, autoZoom.getZoom(), autoZoom.getCenterX(), autoZoom.getCenterY());
+        updatePreviewMapper();
+        try {
+            previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void pauseDetection() {
+        detector.setPaused(true);
+        setReaderTargeted(false);
+        if (watchdog != null) {
+            watchdog.setPaused(true);
+        }
+    }
+
+    @Override
+    public void resumeDetection() {
+        setReaderTargeted(true);
+        if (idleMonitor != null) {
+            idleMonitor.reset(SystemClock.elapsedRealtime());
+        }
+        detector.setPaused(false);
+        if (watchdog != null) {
+            watchdog.setPaused(false);
+        }
+    }
+
+    void setRecoveryListener(FrameWatchdog.Listener listener) {
+        if (watchdog != null) {
+            watchdog.setListener(listener);
+        }
+    }
+
+    void setPowerListener(PowerScheduler.Listener listener) {
+        this.powerListener = listener;
+    }
+
+    private void setPowerLevel(int level) {
+        powerLevel = level;
+        applyLevel();
+    }
+
+    /**
+     * Idle runs the camera and detector at the minimal power level, or lower if the
+     * power scheduler already has; waking goes straight back.
+     */
+    private void setIdle(boolean idle) {
+        this.idle = idle;
+        applyLevel();
+    }
+
+    private int effectiveLevel() {
+        return idle ? Math.max(powerLevel, PowerScheduler.LEVEL_MINIMAL) : powerLevel;
+    }
+
+    private void applyLevel() {
+        detector.setPowerLevel(effectiveLevel());
+        if (previewSession == null) {
+            return;
+        }
+        applyFpsRange(previewBuilder);
+        try {
+            previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "Couldn't change frame rate", e);
+        }
+    }
+
+    /**
+     * Ask auto exposure for the slowest frame rate range still covering the power
+     * level's target, so the sensor itself runs slower; without a target the
+     * camera's default applies.
+     */
+    private void applyFpsRange(CaptureRequest.Builder builder) {
+        int fps = PowerScheduler.targetFps(effectiveLevel());
+        Range<Integer>[] ranges = fps == 0 ? null
+            : cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        Range<Integer> best = null;
+        if (ranges != null) {
+            for (Range<Integer> range : ranges) {
+                if (range.getUpper() < fps) {
+                    continue;
+                }
+                if (best == null || range.getUpper() < best.getUpper()
+                    || (range.getUpper().equals(best.getUpper()) && range.getLower() < best.getLower())) {
+                    best = range;
+                }
             }
         }
+        builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, best);
+    }
+
+    @Override
+    public void putStats(Map<String, Object> stats) {
+        if (watchdog != null) {
+            watchdog.putStats(stats);
+        }
+        if (idleMonitor != null) {
+            idleMonitor.putStats(stats, SystemClock.elapsedRealtime());
+        }
+        if (powerScheduler != null) {
+            stats.put("powerLevel", PowerScheduler.levelName(powerScheduler.getLevel()));
+            stats.put("thermalStatus", powerScheduler.getThermalStatus());
+            stats.put("powerSave", powerScheduler.isPowerSave());
+        }
+        if (memoryPlan != null) {
+            long readerBytes = memoryPlan.maxImages * MemoryBudget.readerFrameBytes(memoryPlan.width, memoryPlan.height);
+            long slotBytes = detector.frameSlotBytes();
+            long decodeBytes = MemoryBudget.decodeBytes(memoryPlan.width, memoryPlan.height);
+            stats.put("memoryBudgetBytes", memoryBudget.getCurrentLimit());
+            stats.put("memoryTrimShift", memoryBudget.getTrimShift());
+            stats.put("readerMaxImages", memoryPlan.maxImages);
+            stats.put("frameSlots", memoryPlan.frameSlots);
+            stats.put("decodeWidth", memoryPlan.width);
+            stats.put("decodeHeight", memoryPlan.height);
+            stats.put("readerBytes", readerBytes + highResBytes);
+            stats.put("frameSlotBytes", slotBytes);
+            stats.put("memoryFootprintBytes", readerBytes + highResBytes + slotBytes + decodeBytes);
+        }
+    }
+
+    /**
+     * Shrink the frame buffers under memory pressure, recreating the session if the
+     * readers have to change.
+     */
+    @Override
+    public void trimMemory(int level) {
+        if (!memoryBudget.onTrimMemory(level)) {
+            return;
+        }
+        Log.i(TAG, "Trimming frame buffers for level " + level);
+        detector.trimMemory();
+        if (cameraDevice == null || previewSession == null || jpegSizes == null) {
+            // picked up when the session is next created.
+            return;
+        }
+        MemoryBudget.Plan plan = memoryBudget.plan(getAppropriateSize(jpegSizes), yuvSizes);
+        if (!plan.sameAs(memoryPlan) || !memoryBudget.fits(plan.bytes() + highResBytes)) {
+            closeSession();
+            startCamera();
+        }
+    }
+
+    /**
+     * Add or remove the image reader from the repeating request. The preview keeps
+     * running either way, and without the reader no frames are acquired at all.
+     */
+    private void setReaderTargeted(boolean targeted) {
+        if (previewBuilder == null || previewSession == null || reader == null) {
+            return;
+        }
+        if (targeted) {
+            previewBuilder.addTarget(reader.getSurface());
+        } else {
+            previewBuilder.removeTarget(reader.getSurface());
+        }
+        try {
+            previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
@@ -165,7 +527,17 @@ class QrCameraC2 implements QrCamera {
                 default:
                     return;
             }
-            cameraDevice.close();
+            // no recovery may reopen the old camera while switching, and a pending open
+            // closes its device when it arrives.
+            if (watchdog != null) {
+                watchdog.stop();
+            }
+            openGeneration++;
+            closeSession();
+            if (cameraDevice != null) {
+                cameraDevice.close();
+                cameraDevice = null;
+            }
             try {
                 start();
             } catch (QrReader.Exception e) {
@@ -175,9 +547,13 @@ class QrCameraC2 implements QrCamera {
     }
 
 
-    private int getFrameOrientation() {
-        WindowManager windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        int deviceRotation = windowManager.getDefaultDisplay().getRotation();
+    /**
+     * Work out the Frame rotation for the display's rotation, once at start and then
+     * whenever the display changes rather than for every frame.
+     */
+    private void updateFrameOrientation() {
+        Display display = displayManager != null ? displayManager.getDisplay(Display.DEFAULT_DISPLAY) : null;
+        int deviceRotation = display != null ? display.getRotation() : Surface.ROTATION_0;
         int rotationCompensation = (ORIENTATIONS.get(deviceRotation) + sensorOrientation + 270) % 360;
 
         int result;
@@ -198,7 +574,27 @@ class QrCameraC2 implements QrCamera {
                 result = Frame.ROTATION_0;
                 Log.e(TAG, "Bad rotation value: " + rotationCompensation);
         }
-        return result;
+        frameOrientation = result;
+    }
+
+    /**
+     * Precompute how results map into the preview for the current streams and crop
+     * region; called whenever either changes.
+     */
+    private void updatePreviewMapper() {
+        if (memoryPlan == null || size == null || previewBuilder == null) {
+            return;
+        }
+        Rect cropRegion = previewBuilder.get(CaptureRequest.SCALER_CROP_REGION);
+        if (cropRegion == null) {
+            cropRegion = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        }
+        if (cropRegion == null || cropRegion.isEmpty()) {
+            return;
+        }
+        Integer facing = cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
+        detector.setPreviewMapper(new PreviewMapper(memoryPlan.width, memoryPlan.height, size.getWidth(),
+            size.getHeight(), cropRegion, facing != null && facing == LENS_FACING_FRONT));
     }
 
 
@@ -210,59 +606,162 @@ class QrCameraC2 implements QrCamera {
             throw new RuntimeException("Unable to get camera manager.");
         }
 
-        String cameraId = null;
+        CameraSelector.Candidate selected = null;
         try {
-            String[] cameraIdList = manager.getCameraIdList();
-            for (String id : cameraIdList) {
-                CameraCharacteristics cameraCharacteristics = manager.getCameraCharacteristics(id);
-                Integer integer = cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
-                if (integer != null && integer.equals(cameraLensFacing)) {
-                    cameraId = id;
-                    break;
-                }
-            }
+            List<CameraSelector.Candidate> candidates = CameraSelector.candidates(manager, cameraLensFacing,
+                targetWidth, targetHeight, options.includePhysicalCameras);
+            rankedCameras = CameraSelector.rank(candidates);
+            selected = CameraSelector.select(candidates, rankedCameras, options.scoreCameras, options.cameraId,
+                options.physicalCameraId);
         } catch (CameraAccessException e) {
             Log.w(TAG, "Error getting back camera.", e);
             throw new RuntimeException(e);
         }
 
-        if (cameraId == null) {
+        if (selected == null) {
             throw new QrReader.Exception(QrReader.Exception.Reason.noBackCamera);
         }
+        selectedCamera = selected;
+        cameraManager = manager;
+        cameraId = selected.cameraId;
+        Log.i(TAG, "Using camera " + cameraId + (selected.physicalCameraId != null ? "/" + selected.physicalCameraId : "")
+            + " with score " + selected.score);
 
         try {
             cameraCharacteristics = manager.getCameraCharacteristics(cameraId);
-            StreamConfigurationMap map = cameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            // a physical camera's streams have to be sizes it supports itself.
+            StreamConfigurationMap map = (selected.physicalCameraId != null
+                ? manager.getCameraCharacteristics(selected.physicalCameraId)
+                : cameraCharacteristics).get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
             Integer sensorOrientationInteger = cameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
             sensorOrientation = sensorOrientationInteger == null ? 0 : sensorOrientationInteger;
             Boolean available = cameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
             isFlashSupported = available == null ? false : available;
+            Range<Integer> compensationRange = cameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+            exposureCompensationMax = compensationRange == null ? 0 : compensationRange.getUpper();
+            exposureCompensation = Math.min(exposureCompensation, exposureCompensationMax);
+            if (options.autoLight) {
+                int maxStage = isFlashSupported ? LowLightController.STAGE_TORCH
+                    : exposureCompensationMax > 0 ? LowLightController.STAGE_EXPOSURE
+                    : LowLightController.STAGE_NORMAL;
+                detector.setLightingListener(new QrDetector2.LightingListener() {
+                    @Override
+                    public void setLightingStage(int stage) {
+                        QrCameraC2.this.setLightingStage(stage);
+                    }
+                }, maxStage);
+            }
             cameraZoom = new CameraZoom(cameraCharacteristics);
+            zoomFactor = cameraZoom.clamp(zoomFactor);
+            autoZoom = options.autoZoom && cameraZoom.hasSupport
+                ? new AutoZoom(options.autoZoomTargetSize, options.autoZoomSmoothing, cameraZoom.maxZoom, zoomFactor)
+                : null;
 
             size = getAppropriateSize(map.getOutputSizes(SurfaceTexture.class));
             jpegSizes = map.getOutputSizes(ImageFormat.JPEG);
-            manager.openCamera(cameraId, new CameraDevice.StateCallback() {
+            yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Error getting camera configuration.", e);
+            return;
+        }
+
+        if (watchdog != null) {
+            watchdog.setPaused(detector.isPaused());
+            watchdog.start();
+        }
+        if (powerScheduler != null) {
+            powerScheduler.start();
+        }
+        if (displayManager != null) {
+            displayManager.unregisterDisplayListener(displayListener);
+            displayManager.registerDisplayListener(displayListener, handler);
+        }
+        if (idleMonitor != null) {
+            idleMonitor.reset(SystemClock.elapsedRealtime());
+        }
+        updateFrameOrientation();
+        openDevice();
+    }
+
+    /**
+     * Open the camera, superseding any open still pending: that one's device is closed
+     * as soon as it arrives rather than replacing the newer one.
+     */
+    private void openDevice() {
+        final int generation = ++openGeneration;
+        try {
+            cameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
                 @Override
                 public void onOpened(@NonNull CameraDevice device) {
+                    if (generation != openGeneration) {
+                        device.close();
+                        return;
+                    }
+                    if (cameraDevice != null && cameraDevice != device) {
+                        closeSession();
+                        cameraDevice.close();
+                    }
                     cameraDevice = device;
                     startCamera();
                 }
 
                 @Override
                 public void onDisconnected(@NonNull CameraDevice device) {
+                    Log.w(TAG, "Camera disconnected");
+                    onDeviceLost(device, "disconnected", generation);
                 }
 
                 @Override
                 public void onError(@NonNull CameraDevice device, int error) {
                     Log.w(TAG, "Error opening camera: " + error);
+                    onDeviceLost(device, "error" + error, generation);
                 }
             }, null);
-        } catch (CameraAccessException e) {
-            Log.w(TAG, "Error getting camera configuration.", e);
+        } catch (CameraAccessException | SecurityException | IllegalArgumentException e) {
+            Log.w(TAG, "Error opening camera.", e);
+            if (watchdog != null) {
+                watchdog.onError("openFailed", true);
+            }
+        }
+    }
+
+    private void onDeviceLost(CameraDevice device, String cause, int generation) {
+        device.close();
+        if (device == cameraDevice) {
+            closeSession();
+            cameraDevice = null;
+        }
+        // a superseded open failing doesn't need recovering from.
+        if (watchdog != null && generation == openGeneration) {
+            watchdog.onError(cause, true);
+        }
+    }
+
+    /**
+     * Close the capture session and the readers feeding it, leaving the device open.
+     */
+    private void closeSession() {
+        if (previewSession != null) {
+            try {
+                previewSession.close();
+            } catch (IllegalStateException e) {
+                // the device has already gone.
+            }
+            previewSession = null;
+        }
+        if (reader != null) {
+            // closing the reader frees the buffers of any image the detector still holds.
+            detector.drainHeldImages();
+            reader.close();
+            reader = null;
+        }
+        if (highResReader != null) {
+            highResReader.close();
+            highResReader = null;
         }
     }
 
-    private Integer afMode(CameraCharacteristics cameraCharacteristics) {
+    static Integer afMode(CameraCharacteristics cameraCharacteristics) {
 
         int[] afModes = cameraCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
 
@@ -286,19 +785,114 @@ class QrCameraC2 implements QrCamera {
         }
     }
 
+    static boolean hasAfMode(CameraCharacteristics cameraCharacteristics, int mode) {
+        int[] afModes = cameraCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (afModes != null) {
+            for (int afMode : afModes) {
+                if (afMode == mode) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the af mode on the preview builder. Must happen before the repeating
+     * request is submitted for it to have any effect.
+     */
     private void initAutoFocus() {
         Integer afMode = afMode(cameraCharacteristics);
 
         if (afMode != null) {
             previewBuilder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
             Log.i(TAG, "Setting af mode to: " + afMode);
-            if (afMode == CONTROL_AF_MODE_AUTO) {
-                previewBuilder.set(
-                    CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
-            } else {
-                previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
+        }
+    }
+
+    /**
+     * Trigger a single af scan. The trigger is sent as a one-off capture; left in
+     * the repeating request it would restart the scan on every frame.
+     */
+    private void triggerAutoFocus() throws CameraAccessException {
+        previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
+        previewSession.capture(previewBuilder.build(), null, null);
+        previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+    }
+
+    /**
+     * Focus and meter on a region of the analysis image, given in raw image coordinates,
+     * for a while before going back to continuous focus over the whole frame.
+     */
+    private void focusOnRegion(Rect raw, int imageWidth, int imageHeight) {
+        if (previewSession == null || cameraCharacteristics == null) {
+            return;
+        }
+
+        Integer maxAfRegions = cameraCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+        Integer maxAeRegions = cameraCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+        boolean canFocus = maxAfRegions != null && maxAfRegions > 0 && afMode(cameraCharacteristics) != null;
+        // without a single scan mode the regions only guide the continuous mode already set.
+        boolean canScan = canFocus && hasAfMode(cameraCharacteristics, CONTROL_AF_MODE_AUTO);
+        boolean canMeter = maxAeRegions != null && maxAeRegions > 0;
+        if (!canFocus && !canMeter) {
+            return;
+        }
+
+        Rect cropRegion = previewBuilder.get(CaptureRequest.SCALER_CROP_REGION);
+        if (cropRegion == null) {
+            cropRegion = cameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+            if (cropRegion == null) {
+                return;
             }
         }
+
+        Rect sensorRegion = new Rect();
+        SensorCoordinateMapper.toSensor(raw, imageWidth, imageHeight, cropRegion, sensorRegion);
+        if (sensorRegion.isEmpty()) {
+            return;
+        }
+        MeteringRectangle[] regions = new MeteringRectangle[]{
+            new MeteringRectangle(sensorRegion, MeteringRectangle.METERING_WEIGHT_MAX - 1)
+        };
+
+        try {
+            if (canMeter) {
+                previewBuilder.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+            }
+            if (canFocus) {
+                previewBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+            }
+            if (canScan) {
+                previewBuilder.set(CaptureRequest.CONTROL_AF_MODE, CONTROL_AF_MODE_AUTO);
+            }
+            previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+            if (canScan) {
+                triggerAutoFocus();
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+
+        handler.removeCallbacks(resetFocusRegion);
+        handler.postDelayed(resetFocusRegion, FOCUS_REGION_HOLD_MILLIS);
+    }
+
+    private void resetFocusRegion() {
+        if (previewSession == null) {
+            return;
+        }
+        previewBuilder.set(CaptureRequest.CONTROL_AE_REGIONS, null);
+        previewBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, null);
+        previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+        try {
+            previewSession.capture(previewBuilder.build(), null, null);
+            previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+            initAutoFocus();
+            previewSession.setRepeatingRequest(previewBuilder.build(), null, null);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
     }
 
 
@@ -306,20 +900,41 @@ class QrCameraC2 implements QrCamera {
         List<Surface> list = new ArrayList<>();
 
         Size jpegSize = getAppropriateSize(jpegSizes);
+        memoryPlan = memoryBudget.plan(jpegSize, yuvSizes);
+        detector.setFrameSlots(memoryPlan.frameSlots);
+        detector.setReaderMaxImages(memoryPlan.maxImages);
 
-        final int width = jpegSize.getWidth(), height = jpegSize.getHeight();
-        reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, 5);
+        final int width = memoryPlan.width, height = memoryPlan.height;
+        reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, memoryPlan.maxImages);
 
         list.add(reader.getSurface());
 
         ImageReader.OnImageAvailableListener imageAvailableListener = new ImageReader.OnImageAvailableListener() {
             @Override
             public void onImageAvailable(ImageReader reader) {
-                try (Image image = reader.acquireLatestImage()) {
+                Image image = null;
+                boolean held = false;
+                FrameTracer tracer = detector.getTracer();
+                try {
+                    long start = tracer.begin(FrameTracer.ACQUIRE);
+                    try {
+                        image = reader.acquireLatestImage();
+                    } finally {
+                        tracer.end(FrameTracer.ACQUIRE, image == null ? 0 : image.getTimestamp(), start);
+                    }
                     if (image == null) return;
-                    detector.detect(image, getFrameOrientation());
+                    tracer.beginFrame(image.getTimestamp());
+                    if (watchdog != null) {
+                        watchdog.onFrame();
+                    }
+                    // a held image is closed by the detector once decoded.
+                    held = detector.detect(image, frameOrientation);
                 } catch (Throwable t) {
                     t.printStackTrace();
+                } finally {
+                    if (image != null && !held) {
+                        image.close();
+                    }
                 }
             }
         };
@@ -328,15 +943,57 @@ class QrCameraC2 implements QrCamera {
 
         texture.setDefaultBufferSize(size.getWidth(), size.getHeight());
         list.add(new Surface(texture));
+
+        Size highResSize = options.highResFallback ? getHighResSize(width, height) : null;
+        highResBytes = 0;
+        if (highResSize != null) {
+            // two reader images plus the detector's copy and its decode buffer.
+            long bytes = 2 * MemoryBudget.readerFrameBytes(highResSize.getWidth(), highResSize.getHeight())
+                + MemoryBudget.slotBytes(highResSize.getWidth(), highResSize.getHeight())
+                + MemoryBudget.decodeBytes(highResSize.getWidth(), highResSize.getHeight());
+            if (memoryBudget.fits(memoryPlan.bytes() + bytes)) {
+                highResBytes = bytes;
+            } else {
+                Log.i(TAG, "High resolution fallback doesn't fit the memory budget");
+                highResSize = null;
+            }
+        }
+        if (highResSize != null) {
+            // only ever a target of one-off captures, never of the repeating request.
+            highResReader = ImageReader.newInstance(highResSize.getWidth(), highResSize.getHeight(), ImageFormat.YUV_420_888, 2);
+            highResReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = null;
+                    try {
+                        image = reader.acquireLatestImage();
+                        if (image != null && detector.detectHighRes(image, frameOrientation)) {
+                            // closed by the detector once copied.
+                            image = null;
+                        }
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    } finally {
+                        if (image != null) {
+                            image.close();
+                        }
+                    }
+                }
+            }, null);
+            list.add(highResReader.getSurface());
+        }
         try {
             previewBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            previewBuilder.addTarget(list.get(0));
+            if (!detector.isPaused()) {
+                previewBuilder.addTarget(list.get(0));
+            }
             previewBuilder.addTarget(list.get(1));
 
-            Integer afMode = afMode(cameraCharacteristics);
-
             previewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
-            cameraZoom.setZoom(previewBuilder, zoomFactor);
+            initAutoFocus();
+            restoreRequestState();
+            applyFpsRange(previewBuilder);
+            updatePreviewMapper();
 
         } catch (java.lang.Exception e) {
             e.printStackTrace();
@@ -344,18 +1001,37 @@ class QrCameraC2 implements QrCamera {
         }
 
         try {
-            cameraDevice.createCaptureSession(list, new CameraCaptureSession.StateCallback() {
+            CameraCaptureSession.StateCallback sessionCallback = new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession session) {
                     previewSession = session;
                     startPreview();
+                    if (watchdog != null) {
+                        watchdog.onSessionConfigured();
+                    }
                 }
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession session) {
-                    System.out.println("### Configuration Fail ###");
+                    Log.w(TAG, "Capture session configuration failed");
+                    if (watchdog != null) {
+                        watchdog.onError("configureFailed", false);
+                    }
                 }
-            }, null);
+            };
+            String physicalCameraId = selectedCamera.physicalCameraId;
+            if (physicalCameraId != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                // requests still go to the logical camera, but every stream comes from the physical one.
+                List<OutputConfiguration> outputs = new ArrayList<>(list.size());
+                for (Surface surface : list) {
+                    OutputConfiguration output = new OutputConfiguration(surface);
+                    output.setPhysicalCameraId(physicalCameraId);
+                    outputs.add(output);
+                }
+                cameraDevice.createCaptureSessionByOutputConfigurations(outputs, sessionCallback, null);
+            } else {
+                cameraDevice.createCaptureSession(list, sessionCallback, null);
+            }
         } catch (Throwable t) {
             t.printStackTrace();
 
@@ -375,21 +1051,127 @@ class QrCameraC2 implements QrCamera {
         try {
             previewSession.setRepeatingRequest(previewBuilder.build(), listener, null);
 
-            initAutoFocus();
-
+            // auto (as opposed to continuous) af only focuses when triggered.
+            Integer afMode = previewBuilder.get(CaptureRequest.CONTROL_AF_MODE);
+            if (afMode != null && afMode == CONTROL_AF_MODE_AUTO) {
+                triggerAutoFocus();
+            }
         } catch (java.lang.Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Put the torch, low light exposure and zoom, including any auto zoom crop, on a
+     * freshly built request, so rebuilding the session doesn't lose them.
+     */
+    private void restoreRequestState() {
+        if (isFlashSupported && (isTorchOn || isAutoTorchOn)) {
+            previewBuilder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_TORCH);
+        }
+        if (exposureCompensation != 0) {
+            previewBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, exposureCompensation);
+        }
+        if (autoZoom != null) {
+            cameraZoom.setZoom(previewBuilder, autoZoom.getZoom(), autoZoom.getCenterX(), autoZoom.getCenterY());
+        } else {
+            cameraZoom.setZoom(previewBuilder, zoomFactor);
+        }
+    }
+
     @Override
     public void stop() {
+        // a pending open closes its device when it arrives.
+        openGeneration++;
+        handler.removeCallbacks(resetFocusRegion);
+        handler.removeCallbacks(resetAutoZoom);
+        if (watchdog != null) {
+            watchdog.stop();
+        }
+        if (powerScheduler != null) {
+            powerScheduler.stop();
+        }
+        if (displayManager != null) {
+            displayManager.unregisterDisplayListener(displayListener);
+        }
         if (cameraDevice != null) {
             cameraDevice.close();
         }
         if (reader != null) {
+            detector.drainHeldImages();
             reader.close();
         }
+        if (highResReader != null) {
+            highResReader.close();
+            highResReader = null;
+        }
+    }
+
+    /**
+     * Every candidate camera for the lens facing, best first, with the one in use marked.
+     */
+    @Override
+    public List<Map<String, Object>> getCameras() {
+        List<Map<String, Object>> cameras = new ArrayList<>();
+        if (rankedCameras == null) {
+            return cameras;
+        }
+        for (CameraSelector.Candidate candidate : rankedCameras) {
+            Map<String, Object> camera = candidate.toMap();
+            camera.put("selected", candidate == selectedCamera);
+            cameras.add(camera);
+        }
+        return cameras;
+    }
+
+    /**
+     * Largest YUV size with the analysis stream's aspect ratio, so both show the same
+     * field of view. Null if there is nothing bigger, or if the camera doesn't guarantee
+     * a maximum size YUV stream next to preview and analysis (FULL and LEVEL_3 do).
+     */
+    private Size getHighResSize(int width, int height) {
+        Integer level = cameraCharacteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        if (level == null || (level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL
+            && level != CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_3)) {
+            Log.i(TAG, "High resolution fallback needs a FULL camera, level is " + level);
+            return null;
+        }
+        if (yuvSizes == null) {
+            return null;
+        }
+
+        Size best = null;
+        for (Size candidate : yuvSizes) {
+            if ((long) candidate.getWidth() * height != (long) candidate.getHeight() * width
+                || candidate.getWidth() <= width) {
+                continue;
+            }
+            if (best == null || candidate.getWidth() > best.getWidth()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Capture one frame to the high resolution reader. The repeating request carries on
+     * as it was; the capture copies its focus, zoom, exposure and torch settings.
+     */
+    private void captureHighRes() {
+        if (previewSession == null || cameraDevice == null || highResReader == null) {
+            return;
+        }
+        try {
+            CaptureRequest.Builder builder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+            builder.addTarget(highResReader.getSurface());
+            builder.set(CaptureRequest.CONTROL_AF_MODE, previewBuilder.get(CaptureRequest.CONTROL_AF_MODE));
+            builder.set(CaptureRequest.SCALER_CROP_REGION, previewBuilder.get(CaptureRequest.SCALER_CROP_REGION));
+            builder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, previewBuilder.get(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION));
+            builder.set(CaptureRequest.FLASH_MODE, previewBuilder.get(CaptureRequest.FLASH_MODE));
+            previewSession.capture(builder.build(), null, null);
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.w(TAG, "High resolution capture failed", e);
+        }
     }
 
     private Size getAppropriateSize(Size[] sizes) {
@@ -4,8 +4,10 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.ImageFormat;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.media.Image;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
@@ -22,6 +24,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -31,62 +34,891 @@ import java.util.concurrent.locks.ReentrantLock;
 @TargetApi(21)
 class QrDetector2 {
     private static final String TAG = "cgl.fqs.QrDetector";
+    // how long after a code was last read a miss is still worth focusing on it
+    private static final long FOCUS_HINT_WINDOW_MILLIS = 1000;
+    // longest the camera waits for a held image to be decoded before closing its reader
+    private static final long HELD_IMAGE_DRAIN_MILLIS = 1000;
     private final QrReaderCallbacks communicator;
+    private final QrReaderEvents events;
     private final Detector<Barcode> detector;
     private final Lock imageToCheckLock = new ReentrantLock();
     private final Lock nextImageLock = new ReentrantLock();
     private final AtomicBoolean isScheduled = new AtomicBoolean(false);
     private final AtomicBoolean needsScheduling = new AtomicBoolean(false);
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+    private final boolean singleShot;
+    private Runnable singleShotListener;
     private int orientation;
+    private final SceneChangeDetector sceneChangeDetector;
+    private final int[] thumbnail = new int[SceneChangeDetector.GRID_SIZE];
+    private final SharpnessGate sharpnessGate;
+    private final RoiTracker roiTracker;
+    private final TiledDetector tiledDetector;
+    private final TierEscalation escalation;
+    private final FormatNarrowing formatNarrowing;
+    private final ScanlineSampler scanlineSampler;
+    private final InventoryStore inventory;
+    private final int formats;
+    private final double stretchClip;
+    private final int binarizeBlockSize;
+    // what frames are decoded for, swapped whole by updateConfig
+    private volatile Config config;
+    // detection worker only
+    private Config lastDecodedConfig;
+    private volatile long lastConfigSwapNanos;
+    private final DetectorCache detectorCache;
+    private volatile String lastDecodeTier;
+    private final Rect roiCrop = new Rect();
+    private final Rect foundBounds = new Rect();
+    private final Point scratchPoint = new Point();
+    private final boolean focusOnCodes;
+    private volatile FocusListener focusListener;
+    private final Rect lastFoundBounds = new Rect();
+    private long lastFoundTime;
+    private boolean focusHinted;
+    private final boolean autoZoom;
+    private volatile ZoomListener zoomListener;
+    private final LowLightController lowLight;
+    private volatile LightingListener lightingListener;
+    private final HighResFallback highResFallback;
+    private volatile HighResListener highResListener;
+    private final QrImage highResImage = new QrImage();
+    private final AtomicBoolean highResBusy = new AtomicBoolean(false);
+    private final HeldImages heldImages;
+    // the options that kept zero copy from being used, null if it wasn't asked for or is used
+    private List<String> zeroCopyBlockedBy;
+    private final FrameTracer tracer;
+    private volatile int analysisWidth;
+    private volatile PreviewMapper previewMapper;
+    private IdleMonitor idleMonitor;
+    private final boolean dartResults;
+    private volatile List<QrResultListener> resultListeners;
+    private volatile int frameSlots = MemoryBudget.FRAME_SLOTS;
+    // set from the PowerScheduler level
+    private volatile long minFrameIntervalMillis;
+    private volatile int decodeScale = 1;
+    private volatile boolean extraPasses = true;
+    private long lastFrameTime;
 
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framesSkippedStatic = new AtomicLong();
+    private final AtomicLong framesDecoded = new AtomicLong();
+    private final AtomicLong framesSharpnessChecked = new AtomicLong();
+    private final AtomicLong framesRejectedBlurry = new AtomicLong();
+    private final AtomicLong framesRoiCropped = new AtomicLong();
+    private final AtomicLong roiMisses = new AtomicLong();
+    private final AtomicLong framesTiled = new AtomicLong();
+    private final AtomicLong detectNanosTotal = new AtomicLong();
+    private final AtomicLong cheapTierFrames = new AtomicLong();
+    private final AtomicLong cheapTierDecodes = new AtomicLong();
+    private final AtomicLong fullTierFrames = new AtomicLong();
+    private final AtomicLong fullTierDecodes = new AtomicLong();
+    private final AtomicLong framesScanline = new AtomicLong();
+    private final AtomicLong scanlineDecodes = new AtomicLong();
+    private final AtomicLong highResCaptures = new AtomicLong();
+    private final AtomicLong highResFrames = new AtomicLong();
+    private final AtomicLong highResDecodes = new AtomicLong();
+    private final AtomicLong framesThrottled = new AtomicLong();
+    private final AtomicLong resultListenerCalls = new AtomicLong();
+    private final AtomicLong configSwaps = new AtomicLong();
+    private final AtomicLong resultListenerNanos = new AtomicLong();
 
     private final AtomicBoolean nextImageSet = new AtomicBoolean(false);
 
     QrImage imageToCheck = new QrImage();
     QrImage nextImage = new QrImage();
 
-    QrDetector2(QrReaderCallbacks communicator, Context context, int formats) {
+    QrDetector2(QrReaderCallbacks communicator, QrReaderEvents events, Context context, int formats,
+                DetectionOptions options) {
         Log.i(TAG, "Making detector2 for formats: " + formats);
         this.communicator = communicator;
+        this.events = events;
+        this.formats = formats;
+        this.stretchClip = options.stretchClip;
+        this.binarizeBlockSize = options.binarizeBlockSize;
+        this.singleShot = options.singleShot;
+        this.dartResults = options.dartResults;
+        this.focusOnCodes = options.focusOnCodes;
+        this.autoZoom = options.autoZoom;
         this.detector = new BarcodeDetector.Builder(context.getApplicationContext()).setBarcodeFormats(formats).build();
+        this.sceneChangeDetector = options.skipStaticFrames
+            ? new SceneChangeDetector(options.staticFrameThreshold, options.staticFrameRefreshInterval)
+            : null;
+        this.sharpnessGate = options.rejectBlurryFrames
+            ? new SharpnessGate(options.minSharpness, options.relativeSharpness)
+            : null;
+        this.config = new Config(formats,
+            FrameProcessorChain.fromNames(options.preprocess, options.stretchClip, options.binarizeBlockSize), 0);
+        this.roiTracker = options.trackRoi
+            ? new RoiTracker(options.roiExpansion, options.roiFullFrameInterval)
+            : null;
+        this.tiledDetector = options.tiledDetection
+            ? new TiledDetector(context, formats, options.tileColumns, options.tileRows, options.tileOverlap)
+            : null;
+        this.escalation = options.escalate
+            ? new TierEscalation(options.escalationScale, options.escalationMisses, formats)
+            : null;
+        this.formatNarrowing = options.narrowFormats
+            ? new FormatNarrowing(formats, options.narrowingWarmup, options.narrowingProbeInterval, options.narrowingCoverage)
+            : null;
+        this.scanlineSampler = options.scanlineFastPath && BarcodeFormats.isLinearOnly(formats)
+            ? new ScanlineSampler(options.scanlineFullFrameInterval)
+            : null;
+        this.inventory = options.inventory
+            ? new InventoryStore(events, options.inventoryDeltaIntervalMillis)
+            : null;
+        this.lowLight = options.autoLight
+            ? new LowLightController(options.darkLuma, options.brightLuma, options.torchOffLuma, options.lightHoldFrames)
+            : null;
+        this.highResFallback = options.highResFallback
+            ? new HighResFallback(options.highResMisses, options.highResMinDetail, options.highResCooldownMillis)
+            : null;
+        this.detectorCache = new DetectorCache(context);
+        this.tracer = new FrameTracer(options.traceSpans);
+        this.heldImages = options.zeroCopy ? zeroCopyImages() : null;
+    }
+
+    /**
+     * Held images for zero copy, or null if an enabled feature has to read the frame's
+     * pixels from the heap copy.
+     */
+    private HeldImages zeroCopyImages() {
+        List<String> blocking = new ArrayList<>();
+        if (lowLight != null) {
+            blocking.add("autoLight");
+        }
+        if (sharpnessGate != null) {
+            blocking.add("rejectBlurryFrames");
+        }
+        if (config.frameProcessors != null) {
+            blocking.add("preprocess");
+        }
+        if (roiTracker != null) {
+            blocking.add("trackRoi");
+        }
+        if (tiledDetector != null) {
+            blocking.add("tiledDetection");
+        }
+        if (escalation != null) {
+            blocking.add("escalate");
+        }
+        if (scanlineSampler != null) {
+            blocking.add("scanlineFastPath");
+        }
+        if (highResFallback != null) {
+            blocking.add("highResFallback");
+        }
+        if (!blocking.isEmpty()) {
+            Log.i(TAG, "Zero copy not used, these options read the copied frame: " + blocking);
+            zeroCopyBlockedBy = blocking;
+            return null;
+        }
+        return new HeldImages(tracer);
+    }
+
+    /**
+     * Whether a frame may be decoded from the held image. That path only runs the
+     * detector and the scene change check, so every pass that reads the frame's pixels,
+     * including ones swapped in or scaled since starting, needs the copy.
+     */
+    private boolean canHoldFrame(Config config) {
+        return decodeScale == 1 && config.frameProcessors == null && lowLight == null && sharpnessGate == null
+            && roiTracker == null && tiledDetector == null && escalation == null && scanlineSampler == null
+            && highResFallback == null;
+    }
+
+    /**
+     * Set what to run once a result has been found in single shot mode, which
+     * should stop frames from being delivered until resumed.
+     */
+    void setSingleShotListener(Runnable singleShotListener) {
+        this.singleShotListener = singleShotListener;
+    }
+
+    interface FocusListener {
+        /**
+         * Called on the main thread with the raw image coordinates of a code that
+         * was found but can't currently be decoded.
+         */
+        void focusOn(Rect raw, int imageWidth, int imageHeight);
+    }
+
+    void setFocusListener(FocusListener focusListener) {
+        this.focusListener = focusListener;
+    }
+
+    interface ZoomListener {
+        /**
+         * Called on the main thread with the raw image coordinates of everything
+         * decoded in a frame.
+         */
+        void zoomTowards(Rect raw, int imageWidth, int imageHeight);
+    }
+
+    void setZoomListener(ZoomListener zoomListener) {
+        this.zoomListener = zoomListener;
+    }
+
+    interface LightingListener {
+        /**
+         * Called on the main thread with one of the LowLightController stages.
+         */
+        void setLightingStage(int stage);
+    }
+
+    /**
+     * @param maxStage - highest LowLightController stage the camera supports
+     */
+    void setLightingListener(LightingListener lightingListener, int maxStage) {
+        this.lightingListener = lightingListener;
+        if (lowLight != null) {
+            lowLight.setMaxStage(maxStage);
+        }
+    }
+
+    interface HighResListener {
+        /**
+         * Called on the main thread when a single high resolution frame should be
+         * captured and handed to detectHighRes.
+         */
+        void captureHighRes();
+    }
+
+    void setHighResListener(HighResListener highResListener) {
+        this.highResListener = highResListener;
+    }
+
+    /**
+     * Frames held for decoding: with two, a frame can be copied in while the other
+     * is decoded; with one, frames arriving mid-decode are dropped and the second
+     * copy is freed.
+     */
+    void setFrameSlots(int frameSlots) {
+        this.frameSlots = Math.max(1, Math.min(MemoryBudget.FRAME_SLOTS, frameSlots));
+    }
+
+    /**
+     * Apply a PowerScheduler level: cap the decode rate, drop the extra passes and
+     * decode at lower resolution as it goes up.
+     */
+    void setPowerLevel(int level) {
+        int fps = PowerScheduler.targetFps(level);
+        minFrameIntervalMillis = fps == 0 ? 0 : 1000 / fps;
+        decodeScale = PowerScheduler.decodeScale(level);
+        extraPasses = level == PowerScheduler.LEVEL_NORMAL;
+    }
+
+    /**
+     * Also send each result's corner points mapped into the preview, see PreviewMapper.
+     */
+    void setPreviewMapper(PreviewMapper previewMapper) {
+        this.previewMapper = previewMapper;
+    }
+
+    /**
+     * Listeners to hand results to on the worker thread, read for every frame so
+     * additions to the list apply straight away. Should be safe to iterate while
+     * being changed, such as a CopyOnWriteArrayList.
+     */
+    void setResultListeners(List<QrResultListener> resultListeners) {
+        this.resultListeners = resultListeners;
+    }
+
+    /**
+     * Claim a frame's results on the detection worker, before any listener sees them. In
+     * single shot mode only the first frame with results wins, and pauses detection.
+     */
+    private boolean claimResults() {
+        return singleShot ? paused.compareAndSet(false, true) : !paused.get();
+    }
+
+    /**
+     * Hand a frame's results to the result listeners. Detection worker only, once the
+     * points are in full frame coordinates and the results have been claimed.
+     */
+    private void notifyResultListeners(SparseArray<Barcode> detectedItems, long frameId, int rotation) {
+        List<QrResultListener> listeners = resultListeners;
+        if (listeners == null || listeners.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        PreviewMapper mapper = previewMapper;
+        List<ScanResult> results = new ArrayList<>(detectedItems.size());
+        for (int i = 0; i < detectedItems.size(); ++i) {
+            Barcode barcode = detectedItems.valueAt(i);
+            Point[] cornerPoints = null;
+            double[] previewPoints = null;
+            if (barcode.cornerPoints != null) {
+                // copies, the originals are read again on the main thread.
+                cornerPoints = new Point[barcode.cornerPoints.length];
+                previewPoints = mapper != null ? new double[2 * cornerPoints.length] : null;
+                double[] previewPoint = new double[2];
+                for (int j = 0; j < cornerPoints.length; ++j) {
+                    Point point = barcode.cornerPoints[j];
+                    cornerPoints[j] = new Point(point.x, point.y);
+                    if (mapper != null) {
+                        mapper.toPreview(point.x, point.y, rotation, previewPoint);
+                        previewPoints[2 * j] = previewPoint[0];
+                        previewPoints[2 * j + 1] = previewPoint[1];
+                    }
+                }
+            }
+            results.add(new ScanResult(barcode.rawValue, barcode.displayValue,
+                BarcodeFormats.fromIntValue(barcode.format), cornerPoints, previewPoints));
+        }
+        for (QrResultListener listener : listeners) {
+            try {
+                listener.onResults(results, frameId);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Result listener failed", e);
+            }
+        }
+        resultListenerCalls.incrementAndGet();
+        resultListenerNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Tell the monitor about every arriving frame and what was decoded. Main thread only.
+     */
+    void setIdleMonitor(IdleMonitor idleMonitor) {
+        this.idleMonitor = idleMonitor;
+    }
+
+    FrameTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Bound the images held for zero copy by what the image reader can spare.
+     */
+    void setReaderMaxImages(int maxImages) {
+        if (heldImages != null) {
+            heldImages.setReaderMaxImages(maxImages);
+        }
+    }
+
+    /**
+     * Give back every image held for zero copy, before the reader they came from is
+     * closed. Waits for one that is being decoded. Main thread only.
+     */
+    void drainHeldImages() {
+        if (heldImages != null) {
+            heldImages.drain(HELD_IMAGE_DRAIN_MILLIS);
+        }
+    }
+
+    /**
+     * Bytes currently held by the frame copies.
+     */
+    long frameSlotBytes() {
+        return imageToCheck.memoryBytes() + nextImage.memoryBytes() + highResImage.memoryBytes();
+    }
+
+    /**
+     * What frames are decoded for. Immutable, so the worker reads it once per frame
+     * and a swap never lands mid-frame.
+     */
+    static final class Config {
+        // the mask, for a shared camera the union of everything sharing it
+        final int formats;
+        // null for no preprocessing
+        final FrameProcessorChain frameProcessors;
+        // elapsedRealtimeNanos when swapped in, 0 for the one started with
+        final long swapNanos;
+
+        Config(int formats, FrameProcessorChain frameProcessors, long swapNanos) {
+            this.formats = formats;
+            this.frameProcessors = frameProcessors;
+            this.swapNanos = swapNanos;
+        }
+    }
+
+    /**
+     * Decode for this mask and with these preprocessing stages from the next frame on,
+     * leaving the camera alone. Masks used before reuse their cached detector. While
+     * the mask differs from the one the detector was made for, the passes built
+     * around that mask (tiles, scanlines, the cheap tier, format narrowing) are
+     * skipped, and with preprocessing zero copy falls back to copying.
+     *
+     * @param preprocess - FrameProcessorChain stage names, or null to keep the current stages
+     */
+    void updateConfig(int formats, List<String> preprocess) {
+        Config current = config;
+        FrameProcessorChain frameProcessors = preprocess == null ? current.frameProcessors
+            : FrameProcessorChain.fromNames(preprocess, stretchClip, binarizeBlockSize);
+        if (formats == current.formats && frameProcessors == current.frameProcessors) {
+            return;
+        }
+        config = new Config(formats, frameProcessors, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * The detector for config's mask. Detection worker only.
+     */
+    private Detector<Barcode> detectorFor(Config config) {
+        return config.formats == formats ? detector : detectorCache.get(config.formats);
+    }
+
+    /**
+     * Note that a frame was decoded with config, timing the swap to it if this is its
+     * first. Detection worker only.
+     */
+    private void onConfigDecoded(Config config) {
+        if (config == lastDecodedConfig) {
+            return;
+        }
+        lastDecodedConfig = config;
+        if (config.swapNanos != 0) {
+            configSwaps.incrementAndGet();
+            lastConfigSwapNanos = SystemClock.elapsedRealtimeNanos() - config.swapNanos;
+        }
+    }
+
+    /**
+     * Memory is short; drop the detectors kept for other format masks, they are
+     * rebuilt when next needed.
+     */
+    void trimMemory() {
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                detectorCache.release();
+            }
+        });
+    }
+
+    /**
+     * Stop analysing frames; frames already being decoded are dropped, as are frames
+     * copied but not yet picked up, so resuming starts from a new frame.
+     */
+    void setPaused(boolean paused) {
+        this.paused.set(paused);
+        if (paused) {
+            dropPendingFrames();
+        } else {
+            maybeStartProcessing();
+        }
+    }
+
+    boolean isPaused() {
+        return paused.get();
+    }
+
+    private void dropPendingFrames() {
+        needsScheduling.set(false);
+        nextImageSet.set(false);
+        if (heldImages != null) {
+            heldImages.dropPending();
+        }
+        // a slot that can't be locked is being decoded, and that result is dropped once paused.
+        discardIfFree(imageToCheck, imageToCheckLock);
+        discardIfFree(nextImage, nextImageLock);
+    }
+
+    private void discardIfFree(QrImage image, Lock lock) {
+        if (lock.tryLock()) {
+            try {
+                if (image.frameId != 0) {
+                    tracer.endFrame(image.frameId);
+                }
+                image.discard();
+            } finally {
+                lock.unlock();
+            }
+        }
     }
 
     private void maybeStartProcessing() {
         // start processing, only if scheduling is needed and
         // there isn't currently a scheduled task.
-        if (needsScheduling.get() && !isScheduled.get()) {
+        if (needsScheduling.get() && !isScheduled.get() && !paused.get()) {
             isScheduled.set(true);
             new QrTaskV2(this).executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
         }
     }
 
-    void detect(Image image, int frameOrientation) {
+    /**
+     * @return whether the image was kept open for zero copy, and so mustn't be closed
+     * by the caller
+     */
+    boolean detect(Image image, int frameOrientation) {
+        long frameId = image.getTimestamp();
+        if (paused.get()) {
+            tracer.endFrame(frameId);
+            return false;
+        }
+        framesReceived.incrementAndGet();
+
+        if (idleMonitor != null) {
+            // before throttling, so motion wakes it on the frame it shows up in.
+            Image.Plane yPlane = image.getPlanes()[0];
+            idleMonitor.onFrame(yPlane.getBuffer(), yPlane.getRowStride(), yPlane.getPixelStride(),
+                image.getWidth(), image.getHeight(), SystemClock.elapsedRealtime());
+        }
+
+        long interval = minFrameIntervalMillis;
+        if (interval > 0) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastFrameTime < interval) {
+                framesThrottled.incrementAndGet();
+                tracer.endFrame(frameId);
+                return false;
+            }
+            lastFrameTime = now;
+        }
+
+        if (sceneChangeDetector != null) {
+            Image.Plane yPlane = image.getPlanes()[0];
+            SceneChangeDetector.sampleThumbnail(yPlane.getBuffer(), yPlane.getRowStride(), yPlane.getPixelStride(),
+                image.getWidth(), image.getHeight(), thumbnail);
+            if (sceneChangeDetector.shouldSkip(thumbnail)) {
+                // nothing has moved since the last frame that decoded to nothing.
+                framesSkippedStatic.incrementAndGet();
+                tracer.endFrame(frameId);
+                return false;
+            }
+        }
+
+        if (heldImages != null && canHoldFrame(config) && HeldImages.canDecodeDirectly(image) && heldImages.offer(image, frameOrientation, thumbnail)) {
+            needsScheduling.set(true);
+            maybeStartProcessing();
+            return true;
+        }
+
         orientation = frameOrientation;
         needsScheduling.set(true);
 
         if (imageToCheckLock.tryLock()) {
             // copy image if not in use
+            long start = tracer.begin(FrameTracer.COPY);
             try {
                 nextImageSet.set(false);
+                if (imageToCheck.frameId != 0) {
+                    // overwritten before the worker got to it.
+                    tracer.endFrame(imageToCheck.frameId);
+                }
                 imageToCheck.copyImage(image);
+                imageToCheck.setThumbnail(thumbnail);
             } finally {
                 imageToCheckLock.unlock();
+                tracer.end(FrameTracer.COPY, frameId, start);
             }
-        } else if (nextImageLock.tryLock()) {
+        } else if (frameSlots > 1 && nextImageLock.tryLock()) {
             // if first image buffer is in use, use second buffer
             // one or the other should always be free but if not this
             // frame is dropped..
+            long start = tracer.begin(FrameTracer.COPY);
             try {
                 nextImageSet.set(true);
+                if (nextImage.frameId != 0) {
+                    tracer.endFrame(nextImage.frameId);
+                }
                 nextImage.copyImage(image);
+                nextImage.setThumbnail(thumbnail);
+            } finally {
+                nextImageLock.unlock();
+                tracer.end(FrameTracer.COPY, frameId, start);
+            }
+        } else {
+            // both buffers busy, the frame is dropped.
+            tracer.endFrame(frameId);
+        }
+        if (frameSlots == 1 && !nextImageSet.get() && nextImage.memoryBytes() > 0 && nextImageLock.tryLock()) {
+            try {
+                if (nextImage.frameId != 0) {
+                    tracer.endFrame(nextImage.frameId);
+                }
+                nextImage.release();
             } finally {
                 nextImageLock.unlock();
             }
         }
         maybeStartProcessing();
+        return false;
+    }
+
+    /**
+     * Decode a high resolution frame captured for the fallback, on the same worker
+     * as the preview frames. Results are scaled to the analysis stream's coordinates.
+     *
+     * @return whether the image was taken, in which case the worker copies and closes it
+     * and the caller mustn't
+     */
+    boolean detectHighRes(Image image, int frameOrientation) {
+        if (paused.get() || analysisWidth == 0 || !highResBusy.compareAndSet(false, true)) {
+            return false;
+        }
+        // a full sensor frame is too big to copy on the main thread.
+        new HighResTask(this, image, frameOrientation, (float) analysisWidth / image.getWidth())
+            .executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
+        return true;
+    }
+
+    /**
+     * Release the detectors once any frame currently being decoded is done.
+     */
+    void release() {
+        if (inventory != null) {
+            inventory.release();
+        }
+        if (heldImages != null) {
+            heldImages.dropPending();
+        }
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (tiledDetector != null) {
+                    tiledDetector.release();
+                }
+                detectorCache.release();
+                detector.release();
+            }
+        });
+    }
+
+    /**
+     * The inventory, or null if not running in inventory mode.
+     */
+    InventoryStore getInventory() {
+        return inventory;
+    }
+
+    Map<String, Object> getStats() {
+        long received = framesReceived.get();
+        long skippedStatic = framesSkippedStatic.get();
+        long decoded = framesDecoded.get();
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("framesReceived", received);
+        stats.put("framesDecoded", decoded);
+        stats.put("averageDetectMillis", decoded == 0 ? 0.0 : detectNanosTotal.get() / 1e6 / decoded);
+        stats.put("framesSkippedStatic", skippedStatic);
+        stats.put("staticSkipRatio", received == 0 ? 0.0 : (double) skippedStatic / received);
+        if (sharpnessGate != null) {
+            long checked = framesSharpnessChecked.get();
+            long rejectedBlurry = framesRejectedBlurry.get();
+            stats.put("framesRejectedBlurry", rejectedBlurry);
+            stats.put("blurRejectRatio", checked == 0 ? 0.0 : (double) rejectedBlurry / checked);
+            stats.put("sharpnessThreshold", sharpnessGate.getThreshold());
+        }
+        FrameProcessorChain frameProcessors = config.frameProcessors;
+        if (frameProcessors != null) {
+            frameProcessors.putStats(stats);
+        }
+        long swaps = configSwaps.get();
+        if (swaps > 0) {
+            stats.put("configSwaps", swaps);
+            stats.put("lastConfigSwapMillis", lastConfigSwapNanos / 1e6);
+        }
+        if (heldImages != null) {
+            heldImages.putStats(stats);
+        } else if (zeroCopyBlockedBy != null) {
+            stats.put("zeroCopyBlockedBy", zeroCopyBlockedBy);
+        }
+        stats.put("framesThrottled", framesThrottled.get());
+        long listenerCalls = resultListenerCalls.get();
+        if (listenerCalls > 0) {
+            stats.put("resultListenerCalls", listenerCalls);
+            stats.put("resultListenerMillis", resultListenerNanos.get() / 1e6 / listenerCalls);
+        }
+        if (tracer.isRecording()) {
+            stats.put("traceSpansRecorded", tracer.getRecorded());
+        }
+        if (roiTracker != null) {
+            long cropped = framesRoiCropped.get();
+            long misses = roiMisses.get();
+            stats.put("framesRoiCropped", cropped);
+            stats.put("roiMisses", misses);
+            stats.put("roiHitRatio", cropped == 0 ? 0.0 : (double) (cropped - misses) / cropped);
+        }
+        if (tiledDetector != null) {
+            stats.put("framesTiled", framesTiled.get());
+        }
+        if (escalation != null) {
+            stats.put("cheapTierFrames", cheapTierFrames.get());
+            stats.put("cheapTierDecodes", cheapTierDecodes.get());
+            stats.put("fullTierFrames", fullTierFrames.get());
+            stats.put("fullTierDecodes", fullTierDecodes.get());
+            stats.put("lastDecodeTier", lastDecodeTier);
+        }
+        if (formatNarrowing != null) {
+            formatNarrowing.putStats(stats);
+        }
+        if (scanlineSampler != null) {
+            stats.put("framesScanline", framesScanline.get());
+            stats.put("scanlineDecodes", scanlineDecodes.get());
+            stats.put("scanlineBytesPerFrame", scanlineSampler.getStripWidth() * ScanlineSampler.STRIP_HEIGHT);
+        }
+        if (highResFallback != null) {
+            stats.put("highResCaptures", highResCaptures.get());
+            stats.put("highResFrames", highResFrames.get());
+            stats.put("highResDecodes", highResDecodes.get());
+        }
+        if (lowLight != null) {
+            stats.put("meanLuma", lowLight.getMeanLuma());
+            stats.put("lightingStage", LowLightController.stageName(lowLight.getStage()));
+        }
+        if (inventory != null) {
+            int size = inventory.size();
+            long bytes = inventory.memoryBytes();
+            stats.put("inventorySize", size);
+            stats.put("inventoryBytes", bytes);
+            stats.put("inventoryBytesPerCode", size == 0 ? 0.0 : (double) bytes / size);
+        }
+        return stats;
+    }
+
+    /**
+     * A code that was just being decoded can no longer be read, most likely because it
+     * is out of focus now. Hand its last known position to the camera once, while the
+     * position is still recent.
+     */
+    private void updateFocusHint(QrTaskV2 task, boolean found, int width, int height) {
+        long now = SystemClock.elapsedRealtime();
+        if (found) {
+            if (!foundBounds.isEmpty()) {
+                lastFoundBounds.set(foundBounds);
+                lastFoundTime = now;
+                focusHinted = false;
+            }
+        } else if (!focusHinted && lastFoundTime != 0 && now - lastFoundTime < FOCUS_HINT_WINDOW_MILLIS) {
+            focusHinted = true;
+            task.focusHint = new Rect(lastFoundBounds);
+            task.focusHintImageWidth = width;
+            task.focusHintImageHeight = height;
+        }
+    }
+
+    /**
+     * Run the preprocessing stages over the luma of the crop, or the whole image
+     * without one, in place. Only called from the detection worker.
+     */
+    private static void preprocess(FrameProcessorChain frameProcessors, QrImage image, Rect crop) {
+        if (crop != null) {
+            frameProcessors.process(image.yPlaneBytes, crop.top * image.yPlaneRowStride + crop.left * image.yPlanePixelStride,
+                image.yPlaneRowStride, image.yPlanePixelStride, crop.width(), crop.height());
+        } else {
+            frameProcessors.process(image.yPlaneBytes, 0, image.yPlaneRowStride, image.yPlanePixelStride,
+                image.width, image.height);
+        }
+    }
+
+    /**
+     * Move the corner points of results decoded from a crop into the coordinates of the
+     * full frame, and collect the raw bounding box of all results into foundBounds.
+     */
+    private void mapResults(SparseArray<Barcode> detectedItems, Rect crop, int rotation, int width, int height) {
+        foundBounds.setEmpty();
+        Point point = scratchPoint;
+        boolean first = true;
+        for (int i = 0; i < detectedItems.size(); ++i) {
+            Point[] cornerPoints = detectedItems.valueAt(i).cornerPoints;
+            if (cornerPoints == null) continue;
+
+            for (Point cornerPoint : cornerPoints) {
+                point.x = cornerPoint.x;
+                point.y = cornerPoint.y;
+                if (crop != null) {
+                    FrameCoordinates.toRaw(point, rotation, crop.width(), crop.height());
+                    point.x += crop.left;
+                    point.y += crop.top;
+                } else {
+                    FrameCoordinates.toRaw(point, rotation, width, height);
+                }
+
+                if (first) {
+                    foundBounds.set(point.x, point.y, point.x, point.y);
+                    first = false;
+                } else {
+                    foundBounds.union(point.x, point.y);
+                }
+
+                if (crop != null) {
+                    cornerPoint.x = point.x;
+                    cornerPoint.y = point.y;
+                    FrameCoordinates.toUpright(cornerPoint, rotation, width, height);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send results on to dart, or into the inventory. Runs on the main thread.
+     */
+    private void deliverResults(SparseArray<Barcode> detectedItems, long frameId, int rotation) {
+        // the worker already paused detection when it claimed the shot.
+        if (detectedItems != null && detectedItems.size() > 0 && singleShot && singleShotListener != null) {
+            singleShotListener.run();
+        }
+
+        if (detectedItems != null && inventory != null) {
+            // only the changes to the inventory go to dart.
+            long start = tracer.begin(FrameTracer.MARSHAL);
+            try {
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < detectedItems.size(); ++i) {
+                    String rawValue = detectedItems.valueAt(i).rawValue;
+                    if (rawValue != null) {
+                        inventory.add(rawValue, now);
+                    }
+                }
+                inventory.maybeFlush();
+            } finally {
+                tracer.end(FrameTracer.MARSHAL, frameId, start);
+            }
+        } else if (detectedItems != null && dartResults) {
+            long start = tracer.begin(FrameTracer.MARSHAL);
+            List<Map<String, Object>> barcodeList = new ArrayList<>();
+            try {
+                PreviewMapper mapper = previewMapper;
+
+                for (int i = 0; i < detectedItems.size(); ++i) {
+                    Barcode barcode = detectedItems.valueAt(i);
+                    Map<String, Object> barcodeMap = new HashMap<>();
+                    List<double[]> points = new ArrayList<>();
+                    List<double[]> previewPoints = new ArrayList<>();
+
+                    barcodeMap.put("rawValue", barcode.rawValue);
+                    barcodeMap.put("format", barcode.format);
+                    if (barcode.getBoundingBox() != null) {
+                        barcodeMap.put("left", (double) barcode.getBoundingBox().left);
+                        barcodeMap.put("top", (double) barcode.getBoundingBox().top);
+                        barcodeMap.put("width", (double) barcode.getBoundingBox().width());
+                        barcodeMap.put("height", (double) barcode.getBoundingBox().height());
+                    }
+
+                    if (barcode.cornerPoints != null) {
+                        for (Point point : barcode.cornerPoints) {
+                            points.add(new double[]{(double) point.x, (double) point.y});
+                            if (mapper != null) {
+                                double[] previewPoint = new double[2];
+                                mapper.toPreview(point.x, point.y, rotation, previewPoint);
+                                previewPoints.add(previewPoint);
+                            }
+                        }
+                    }
+                    barcodeMap.put("points", points);
+                    if (mapper != null) {
+                        barcodeMap.put("previewPoints", previewPoints);
+                    }
+                    barcodeList.add(barcodeMap);
+                }
+            } finally {
+                tracer.end(FrameTracer.MARSHAL, frameId, start);
+            }
+
+            start = tracer.begin(FrameTracer.SEND);
+            try {
+                communicator.qrRead(barcodeList);
+            } finally {
+                tracer.end(FrameTracer.SEND, frameId, start);
+            }
+        }
     }
 
     static class QrImage {
+        // timestamp of the copied image, cleared once the worker has taken it
+        long frameId;
         int width;
         int height;
         int yPlanePixelStride;
@@ -98,6 +930,7 @@ class QrDetector2 {
         byte[] yPlaneBytes = new byte[0];
         byte[] uPlaneBytes = new byte[0];
         byte[] vPlaneBytes = new byte[0];
+        final int[] thumbnail = new int[SceneChangeDetector.GRID_SIZE];
 
         void copyImage(Image image) {
             Image.Plane[] planes = image.getPlanes();
@@ -123,6 +956,7 @@ class QrDetector2 {
             uBufferDirect.get(uPlaneBytes);
             vBufferDirect.get(vPlaneBytes);
 
+            frameId = image.getTimestamp();
             width = image.getWidth();
             height = image.getHeight();
 
@@ -135,7 +969,70 @@ class QrDetector2 {
             vPlaneRowStride = vPlane.getRowStride();
         }
 
+        long memoryBytes() {
+            return (long) yPlaneBytes.length + uPlaneBytes.length + vPlaneBytes.length;
+        }
+
+        /**
+         * Mark the slot empty, keeping the buffers for the next copy.
+         */
+        void discard() {
+            frameId = 0;
+            width = 0;
+            height = 0;
+        }
+
+        /**
+         * Free the copy; the next copyImage allocates again.
+         */
+        void release() {
+            yPlaneBytes = new byte[0];
+            uPlaneBytes = new byte[0];
+            vPlaneBytes = new byte[0];
+            frameId = 0;
+            width = 0;
+            height = 0;
+        }
+
+        void setThumbnail(int[] source) {
+            System.arraycopy(source, 0, thumbnail, 0, SceneChangeDetector.GRID_SIZE);
+        }
+
         private ByteBuffer toNv21(boolean greyScale) {
+            return toNv21(0, 0, width, height, greyScale);
+        }
+
+        /**
+         * Grey scale NV21 of the image with each side divided by scale, sampling every
+         * scale-th pixel of the luma plane.
+         */
+        ByteBuffer toNv21Scaled(int scale) {
+            int scaledWidth = scaledSize(width, scale);
+            int scaledHeight = scaledSize(height, scale);
+            int numPixels = scaledWidth * scaledHeight;
+
+            byte[] nv21ImageBytes = new byte[numPixels * 3 / 2];
+            Arrays.fill(nv21ImageBytes, numPixels, nv21ImageBytes.length, (byte) 127);
+
+            int i = 0;
+            for (int row = 0; row < scaledHeight; ++row) {
+                int offset = row * scale * yPlaneRowStride;
+                for (int col = 0; col < scaledWidth; ++col) {
+                    nv21ImageBytes[i++] = yPlaneBytes[offset + col * scale * yPlanePixelStride];
+                }
+            }
+            return ByteBuffer.wrap(nv21ImageBytes);
+        }
+
+        static int scaledSize(int size, int scale) {
+            return (size / scale) & ~1;
+        }
+
+        /**
+         * Convert only the given window of the image. left and top must be even
+         * so the chroma planes line up.
+         */
+        ByteBuffer toNv21(int left, int top, int width, int height, boolean greyScale) {
             int halfWidth = width / 2;
             int numPixels = width * height;
 
@@ -149,12 +1046,13 @@ class QrDetector2 {
 
 
             for (int i = 0; i < height; ++i) {
-                nv21Buffer.put(yPlaneBytes, i * yPlaneRowStride, width);
+                nv21Buffer.put(yPlaneBytes, (top + i) * yPlaneRowStride + left, width);
             }
 
             if (!greyScale) {
+                int uLeft = left / 2 * uPlanePixelStride, vLeft = left / 2 * vPlanePixelStride;
                 for (int row = 0; row < height / 2; ++row) {
-                    int uRow = row * uPlaneRowStride, vRow = row * vPlaneRowStride;
+                    int uRow = (top / 2 + row) * uPlaneRowStride + uLeft, vRow = (top / 2 + row) * vPlaneRowStride + vLeft;
                     for (int count = 0, u = 0, v = 0; count < halfWidth; u += uPlanePixelStride, v += vPlanePixelStride, count++) {
                         nv21Buffer.put(uPlaneBytes[uRow + u]);
                         nv21Buffer.put(vPlaneBytes[vRow + v]);
@@ -169,6 +1067,19 @@ class QrDetector2 {
     private static class QrTaskV2 extends AsyncTask<Void, Void, SparseArray<Barcode>> {
 
         private final WeakReference<QrDetector2> qrDetector;
+        private Rect focusHint;
+        private int focusHintImageWidth;
+        private int focusHintImageHeight;
+        private Rect zoomBounds;
+        private int zoomImageWidth;
+        private int zoomImageHeight;
+        private int lightingStage = -1;
+        private int meanLuma;
+        private int brightLuma;
+        private boolean requestHighRes;
+        private long frameId;
+        private int resultRotation;
+        private boolean shotClaimed;
 
         private QrTaskV2(QrDetector2 qrDetector) {
             this.qrDetector = new WeakReference<>(qrDetector);
@@ -183,32 +1094,278 @@ class QrDetector2 {
             qrDetector.needsScheduling.set(false);
             qrDetector.isScheduled.set(false);
 
-            ByteBuffer imageBuffer;
+            SceneChangeDetector sceneChangeDetector = qrDetector.sceneChangeDetector;
+            SharpnessGate sharpnessGate = qrDetector.sharpnessGate;
+            RoiTracker roiTracker = qrDetector.roiTracker;
+            int rotation = qrDetector.orientation;
+            HeldImages heldImages = qrDetector.heldImages;
+            Image held = heldImages != null ? heldImages.take() : null;
+
+            QrImage image;
+            Lock imageLock;
+            if (qrDetector.nextImageSet.get()) {
+                image = qrDetector.nextImage;
+                imageLock = qrDetector.nextImageLock;
+            } else {
+                image = qrDetector.imageToCheck;
+                imageLock = qrDetector.imageToCheckLock;
+            }
+
+            TierEscalation escalation = qrDetector.escalation;
+            ByteBuffer imageBuffer = null;
+            SparseArray<Barcode> detectedItems = null;
+            Config config = qrDetector.config;
+            Detector<Barcode> frameDetector = qrDetector.detectorFor(config);
+            boolean ownFormats = frameDetector == qrDetector.detector;
             int width;
             int height;
-            if (qrDetector.nextImageSet.get()) {
+            int frameWidth;
+            int frameHeight;
+            int frameRotation = rotation;
+            Rect crop = null;
+            boolean scanlines = false;
+            String tier = null;
+            int decodeScale = 1;
+            long detectNanos = 0;
+            long convertNanos = 0;
+            if (held != null) {
+                // read in place from the camera's buffer, released once decoded.
+                rotation = frameRotation = heldImages.takenOrientation;
+                width = frameWidth = held.getWidth();
+                height = frameHeight = held.getHeight();
+                qrDetector.analysisWidth = width;
+                imageBuffer = held.getPlanes()[0].getBuffer();
+                frameId = held.getTimestamp();
+                if (sceneChangeDetector != null) {
+                    sceneChangeDetector.setCandidate(heldImages.takenThumbnail);
+                }
+            } else {
                 try {
-                    qrDetector.nextImageLock.lock();
-                    imageBuffer = qrDetector.nextImage.toNv21(false);
-                    width = qrDetector.nextImage.width;
-                    height = qrDetector.nextImage.height;
+                    imageLock.lock();
+                    if (image.width == 0) {
+                        // the slot was freed after being picked.
+                        return null;
+                    }
+                    frameId = image.frameId;
+                    image.frameId = 0;
+                    LowLightController lowLight = qrDetector.lowLight;
+                    if (lowLight != null && qrDetector.lightingListener != null) {
+                        // measured before the sharpness gate, dim frames are often blurry too.
+                        lightingStage = lowLight.onFrame(image.yPlaneBytes, image.yPlaneRowStride,
+                            image.yPlanePixelStride, image.width, image.height, SystemClock.elapsedRealtime());
+                        meanLuma = lowLight.getMeanLuma();
+                        brightLuma = lowLight.getBrightLumaPercentile();
+                    }
+                    if (sharpnessGate != null) {
+                        qrDetector.framesSharpnessChecked.incrementAndGet();
+                        double sharpness = SharpnessGate.measure(image.yPlaneBytes, image.yPlaneRowStride,
+                            image.yPlanePixelStride, image.width, image.height);
+                        if (!sharpnessGate.accept(sharpness)) {
+                            // too blurry to be worth the detector's time.
+                            qrDetector.framesRejectedBlurry.incrementAndGet();
+                            return null;
+                        }
+                    }
+
+                    width = frameWidth = image.width;
+                    height = frameHeight = image.height;
+                    qrDetector.analysisWidth = width;
+                    if (roiTracker != null && roiTracker.nextCrop(width, height, qrDetector.roiCrop)) {
+                        crop = qrDetector.roiCrop;
+                    }
+                    if (config.frameProcessors != null) {
+                        // after lighting and sharpness, which measure the scene rather than the conditioned frame.
+                        long start = qrDetector.tracer.begin(FrameTracer.PREPROCESS);
+                        try {
+                            preprocess(config.frameProcessors, image, crop);
+                        } finally {
+                            qrDetector.tracer.end(FrameTracer.PREPROCESS, frameId, start);
+                        }
+                    }
+                    // tiles convert and detect each tile in turn, so for them this covers detect too.
+                    long convertStart = qrDetector.tracer.begin(FrameTracer.CONVERT);
+                    try {
+                        if (crop != null) {
+                            imageBuffer = image.toNv21(crop.left, crop.top, crop.width(), crop.height(), false);
+                            frameWidth = crop.width();
+                            frameHeight = crop.height();
+                            qrDetector.framesRoiCropped.incrementAndGet();
+                        } else if (qrDetector.tiledDetector != null && qrDetector.extraPasses && ownFormats) {
+                            // tiles read straight from the image so have to run while it is locked.
+                            long start = qrDetector.tracer.begin(FrameTracer.DETECT);
+                            try {
+                                detectedItems = qrDetector.tiledDetector.detect(image, rotation);
+                                detectNanos = System.nanoTime() - start;
+                            } finally {
+                                qrDetector.tracer.end(FrameTracer.DETECT, frameId, start);
+                            }
+                            qrDetector.framesTiled.incrementAndGet();
+                        } else if (qrDetector.scanlineSampler != null && ownFormats && qrDetector.scanlineSampler.useScanlines()) {
+                            scanlines = true;
+                            imageBuffer = qrDetector.scanlineSampler.sample(image.yPlaneBytes, image.yPlaneRowStride,
+                                image.yPlanePixelStride, width, height);
+                            frameWidth = qrDetector.scanlineSampler.getStripWidth();
+                            frameHeight = ScanlineSampler.STRIP_HEIGHT;
+                            // the lines were sampled across the raw image, so the strip is already the right way up.
+                            frameRotation = Frame.ROTATION_0;
+                            qrDetector.framesScanline.incrementAndGet();
+                        } else if (escalation != null && ownFormats && escalation.useCheapPass()) {
+                            tier = TierEscalation.TIER_CHEAP;
+                            imageBuffer = image.toNv21Scaled(escalation.getScale());
+                            frameWidth = QrImage.scaledSize(width, escalation.getScale());
+                            frameHeight = QrImage.scaledSize(height, escalation.getScale());
+                            int cheapFormats = escalation.getCheapFormats();
+                            if (cheapFormats != qrDetector.formats) {
+                                // the full mask keeps the own detector, so format narrowing still applies.
+                                frameDetector = qrDetector.detectorCache.get(cheapFormats);
+                            }
+                        } else {
+                            if (escalation != null) {
+                                tier = TierEscalation.TIER_FULL;
+                            }
+                            decodeScale = qrDetector.decodeScale;
+                            if (decodeScale > 1) {
+                                imageBuffer = image.toNv21Scaled(decodeScale);
+                                frameWidth = QrImage.scaledSize(width, decodeScale);
+                                frameHeight = QrImage.scaledSize(height, decodeScale);
+                            } else {
+                                imageBuffer = image.toNv21(false);
+                            }
+                        }
+                        if (imageBuffer != null) {
+                            // counted with detect, as the tiled path can't separate the two.
+                            convertNanos = System.nanoTime() - convertStart;
+                        }
+                    } finally {
+                        qrDetector.tracer.end(FrameTracer.CONVERT, frameId, convertStart);
+                    }
+                    if (sceneChangeDetector != null) {
+                        sceneChangeDetector.setCandidate(image.thumbnail);
+                    }
                 } finally {
-                    qrDetector.nextImageLock.unlock();
+                    imageLock.unlock();
                 }
-            } else {
+            }
+
+            FormatNarrowing formatNarrowing = null;
+            if (imageBuffer != null && frameDetector == qrDetector.detector && qrDetector.formatNarrowing != null) {
+                formatNarrowing = qrDetector.formatNarrowing;
+                int formats = formatNarrowing.nextFormats();
+                if (formats != qrDetector.formats) {
+                    frameDetector = qrDetector.detectorCache.get(formats);
+                }
+            }
+
+            if (imageBuffer != null) {
                 try {
-                    qrDetector.imageToCheckLock.lock();
-                    imageBuffer = qrDetector.imageToCheck.toNv21(false);
-                    width = qrDetector.imageToCheck.width;
-                    height = qrDetector.imageToCheck.height;
+                    Frame.Builder builder = new Frame.Builder().setImageData(imageBuffer, frameWidth, frameHeight, ImageFormat.NV21);
+                    builder.setRotation(frameRotation);
+                    long start = qrDetector.tracer.begin(FrameTracer.DETECT);
+                    try {
+                        detectedItems = frameDetector.detect(builder.build());
+                        detectNanos = System.nanoTime() - start;
+                    } finally {
+                        qrDetector.tracer.end(FrameTracer.DETECT, frameId, start);
+                    }
                 } finally {
-                    qrDetector.imageToCheckLock.unlock();
+                    if (held != null) {
+                        heldImages.release(held);
+                    }
+                }
+            }
+            qrDetector.framesDecoded.incrementAndGet();
+            qrDetector.onConfigDecoded(config);
+            qrDetector.detectNanosTotal.addAndGet(convertNanos + detectNanos);
+            boolean found = detectedItems != null && detectedItems.size() > 0;
+
+            if (found && decodeScale > 1) {
+                // bring the points back to full frame size
+                for (int i = 0; i < detectedItems.size(); ++i) {
+                    Point[] cornerPoints = detectedItems.valueAt(i).cornerPoints;
+                    if (cornerPoints == null) continue;
+                    for (Point point : cornerPoints) {
+                        point.x *= decodeScale;
+                        point.y *= decodeScale;
+                    }
                 }
             }
 
-            Frame.Builder builder = new Frame.Builder().setImageData(imageBuffer, width, height, ImageFormat.NV21);
-            builder.setRotation(qrDetector.orientation);
-            return qrDetector.detector.detect(builder.build());
+            if (formatNarrowing != null) {
+                formatNarrowing.onResult(detectedItems);
+            }
+
+            if (scanlines && found) {
+                qrDetector.scanlineSampler.mapToFrame(detectedItems, rotation, width, height);
+                qrDetector.scanlineDecodes.incrementAndGet();
+            }
+
+            if (TierEscalation.TIER_CHEAP.equals(tier)) {
+                escalation.onCheapResult(detectedItems);
+                qrDetector.cheapTierFrames.incrementAndGet();
+                if (found) {
+                    qrDetector.cheapTierDecodes.incrementAndGet();
+                    qrDetector.lastDecodeTier = tier;
+                }
+            } else if (TierEscalation.TIER_FULL.equals(tier)) {
+                escalation.onFullResult(detectedItems);
+                qrDetector.fullTierFrames.incrementAndGet();
+                if (found) {
+                    qrDetector.fullTierDecodes.incrementAndGet();
+                    qrDetector.lastDecodeTier = tier;
+                }
+            }
+
+            boolean focusOnCodes = qrDetector.focusOnCodes && qrDetector.focusListener != null;
+            boolean autoZoom = qrDetector.autoZoom && qrDetector.zoomListener != null;
+            if (found && (roiTracker != null || focusOnCodes || autoZoom)) {
+                qrDetector.mapResults(detectedItems, crop, rotation, width, height);
+            }
+
+            if (found && autoZoom && !qrDetector.foundBounds.isEmpty()) {
+                zoomBounds = new Rect(qrDetector.foundBounds);
+                zoomImageWidth = width;
+                zoomImageHeight = height;
+            }
+
+            if (roiTracker != null) {
+                if (found) {
+                    roiTracker.onResults(qrDetector.foundBounds.isEmpty() ? null : qrDetector.foundBounds);
+                } else {
+                    if (crop != null) {
+                        qrDetector.roiMisses.incrementAndGet();
+                    }
+                    roiTracker.onResults(null);
+                }
+            }
+
+            if (focusOnCodes) {
+                qrDetector.updateFocusHint(this, found, width, height);
+            }
+
+            HighResFallback highResFallback = qrDetector.highResFallback;
+            if (highResFallback != null && qrDetector.highResListener != null && imageBuffer != null
+                && qrDetector.extraPasses && crop == null && !scanlines && !TierEscalation.TIER_CHEAP.equals(tier)) {
+                long now = SystemClock.elapsedRealtime();
+                double detail = 0;
+                if (!found && highResFallback.wantsDetail(now)) {
+                    // the full frame is a packed copy, so can be read without the image lock.
+                    detail = SharpnessGate.measure(imageBuffer.array(), frameWidth, 1, frameWidth, frameHeight);
+                }
+                requestHighRes = highResFallback.onFrame(found, detail, now);
+            }
+
+            // a miss on a crop, scanlines or the cheap tier says nothing about the rest of the
+            // scene, and a static skip would stop the full tier from ever getting its turn.
+            boolean partialPass = crop != null || scanlines || TierEscalation.TIER_CHEAP.equals(tier);
+            if (sceneChangeDetector != null && (!partialPass || found)) {
+                sceneChangeDetector.onDecoded(found);
+            }
+            if (found && qrDetector.claimResults()) {
+                shotClaimed = qrDetector.singleShot;
+                qrDetector.notifyResultListeners(detectedItems, frameId, rotation);
+            }
+            resultRotation = rotation;
+            return detectedItems;
         }
 
         @Override
@@ -216,35 +1373,126 @@ class QrDetector2 {
             QrDetector2 qrDetector = this.qrDetector.get();
             if (qrDetector == null) return;
 
-            if (detectedItems != null) {
-                List<Map<String, Object>> barcodeList = new ArrayList<>();
-
-                for (int i = 0; i < detectedItems.size(); ++i) {
-                    Barcode barcode = detectedItems.valueAt(i);
-                    Map<String, Object> barcodeMap = new HashMap<>();
-                    List<double[]> points = new ArrayList<>();
+            // applied even if paused, the controller has already moved on to this stage.
+            if (lightingStage >= 0 && qrDetector.lightingListener != null) {
+                qrDetector.lightingListener.setLightingStage(lightingStage);
+                Map<String, Object> event = new HashMap<>();
+                event.put("stage", LowLightController.stageName(lightingStage));
+                event.put("meanLuma", meanLuma);
+                event.put("brightLuma", brightLuma);
+                qrDetector.events.lightingChanged(event);
+            }
 
-                    barcodeMap.put("rawValue", barcode.rawValue);
-                    if (barcode.getBoundingBox() != null) {
-                        barcodeMap.put("left", (double) barcode.getBoundingBox().left);
-                        barcodeMap.put("top", (double) barcode.getBoundingBox().top);
-                        barcodeMap.put("width", (double) barcode.getBoundingBox().width());
-                        barcodeMap.put("height", (double) barcode.getBoundingBox().height());
-                    }
+            // paused while this frame was being decoded, or another frame took the single shot.
+            if (qrDetector.paused.get() && !shotClaimed) {
+                qrDetector.tracer.endFrame(frameId);
+                return;
+            }
 
-                    if (barcode.cornerPoints != null) {
-                        for (Point point : barcode.cornerPoints) {
-                            points.add(new double[]{(double) point.x, (double) point.y});
-                        }
-                    }
-                    barcodeMap.put("points", points);
-                    barcodeList.add(barcodeMap);
+            if (qrDetector.idleMonitor != null) {
+                long now = SystemClock.elapsedRealtime();
+                qrDetector.idleMonitor.onDecoded(detectedItems != null && detectedItems.size() > 0, now);
+                if (focusHint != null) {
+                    qrDetector.idleMonitor.onPartial(now);
                 }
-                qrDetector.communicator.qrRead(barcodeList);
             }
 
+            if (focusHint != null && qrDetector.focusListener != null) {
+                qrDetector.focusListener.focusOn(focusHint, focusHintImageWidth, focusHintImageHeight);
+            }
+
+            if (zoomBounds != null && qrDetector.zoomListener != null) {
+                qrDetector.zoomListener.zoomTowards(zoomBounds, zoomImageWidth, zoomImageHeight);
+            }
+
+            if (requestHighRes && qrDetector.highResListener != null) {
+                qrDetector.highResCaptures.incrementAndGet();
+                qrDetector.highResListener.captureHighRes();
+            }
+
+            qrDetector.deliverResults(detectedItems, frameId, resultRotation);
+            qrDetector.tracer.endFrame(frameId);
+
             // if needed keep processing.
             qrDetector.maybeStartProcessing();
         }
     }
+
+    private static class HighResTask extends AsyncTask<Void, Void, SparseArray<Barcode>> {
+
+        private final WeakReference<QrDetector2> qrDetector;
+        private final Image source;
+        private final int rotation;
+        private final float scale;
+        private long frameId;
+        private boolean shotClaimed;
+
+        private HighResTask(QrDetector2 qrDetector, Image source, int rotation, float scale) {
+            this.qrDetector = new WeakReference<>(qrDetector);
+            this.source = source;
+            this.rotation = rotation;
+            this.scale = scale;
+        }
+
+        @Override
+        protected SparseArray<Barcode> doInBackground(Void... voids) {
+            QrDetector2 qrDetector = this.qrDetector.get();
+            QrImage image;
+            try {
+                if (qrDetector == null) return null;
+                image = qrDetector.highResImage;
+                image.copyImage(source);
+            } catch (IllegalStateException e) {
+                // the reader was closed while this was waiting behind a preview frame.
+                return null;
+            } finally {
+                source.close();
+            }
+            frameId = image.frameId;
+            Config config = qrDetector.config;
+            if (config.frameProcessors != null) {
+                preprocess(config.frameProcessors, image, null);
+            }
+            Frame.Builder builder = new Frame.Builder().setImageData(image.toNv21(false), image.width, image.height, ImageFormat.NV21);
+            builder.setRotation(rotation);
+            long start = qrDetector.tracer.begin(FrameTracer.DETECT);
+            SparseArray<Barcode> detectedItems;
+            try {
+                detectedItems = qrDetector.detectorFor(config).detect(builder.build());
+            } finally {
+                qrDetector.tracer.end(FrameTracer.DETECT, frameId, start);
+            }
+            qrDetector.highResFrames.incrementAndGet();
+
+            // both streams show the same field of view, so one factor fits both axes.
+            for (int i = 0; i < detectedItems.size(); ++i) {
+                Point[] cornerPoints = detectedItems.valueAt(i).cornerPoints;
+                if (cornerPoints == null) continue;
+                for (Point point : cornerPoints) {
+                    point.x = Math.round(point.x * scale);
+                    point.y = Math.round(point.y * scale);
+                }
+            }
+            if (detectedItems.size() > 0 && qrDetector.claimResults()) {
+                shotClaimed = qrDetector.singleShot;
+                qrDetector.notifyResultListeners(detectedItems, frameId, rotation);
+            }
+            return detectedItems;
+        }
+
+        @Override
+        protected void onPostExecute(SparseArray<Barcode> detectedItems) {
+            QrDetector2 qrDetector = this.qrDetector.get();
+            if (qrDetector == null) return;
+
+            qrDetector.highResBusy.set(false);
+            if ((qrDetector.paused.get() && !shotClaimed) || detectedItems == null || detectedItems.size() == 0) return;
+
+            qrDetector.highResDecodes.incrementAndGet();
+            if (qrDetector.idleMonitor != null) {
+                qrDetector.idleMonitor.onDecoded(true, SystemClock.elapsedRealtime());
+            }
+            qrDetector.deliverResults(detectedItems, frameId, rotation);
+        }
+    }
 }
\ No newline at end of file
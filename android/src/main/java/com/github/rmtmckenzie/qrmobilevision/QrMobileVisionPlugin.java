@@ -14,8 +14,10 @@ import androidx.core.app.ActivityCompat;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.embedding.engine.plugins.activity.ActivityAware;
@@ -33,7 +35,7 @@ import io.flutter.view.TextureRegistry;
 /**
  * QrMobileVisionPlugin
  */
-public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallbacks, QrReader.QRReaderStartedCallback, PluginRegistry.RequestPermissionsResultListener, FlutterPlugin, ActivityAware {
+public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallbacks, QrReaderEvents, QrReader.QRReaderStartedCallback, PluginRegistry.RequestPermissionsResultListener, FlutterPlugin, ActivityAware {
 
     private static final String TAG = "cgr.qrmv.QrMobVisPlugin";
     private static final int REQUEST_PERMISSION = 1;
@@ -45,6 +47,16 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
     private boolean permissionDenied;
     private ReadingInstance readingInstance;
     private FlutterPluginBinding flutterPluginBinding;
+    private final List<QrResultListener> resultListeners = new CopyOnWriteArrayList<>();
+    private final ScanSubscriptions.Sink subscriptionSink = new ScanSubscriptions.Sink() {
+        @Override
+        public void deliver(int subscriptionId, List<Map<String, Object>> codes) {
+            Map<String, Object> arguments = new HashMap<>();
+            arguments.put("subscriptionId", subscriptionId);
+            arguments.put("codes", codes);
+            channel.invokeMethod("qrRead", arguments);
+        }
+    };
 
     /**
      * Plugin registration.
@@ -54,6 +66,22 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
         plugin.performV1Registration(registrar);
     }
 
+    /**
+     * Have results handed to the listener on the detection thread, as well as to dart
+     * unless started with dartResults off. Applies to the running camera and any
+     * started later. Get the plugin from the engine, as with
+     * flutterEngine.getPlugins().get(QrMobileVisionPlugin.class).
+     */
+    public void addResultListener(QrResultListener listener) {
+        if (!resultListeners.contains(listener)) {
+            resultListeners.add(listener);
+        }
+    }
+
+    public void removeResultListener(QrResultListener listener) {
+        resultListeners.remove(listener);
+    }
+
     @Override
     public void onAttachedToEngine(@NonNull FlutterPluginBinding binding) {
         flutterPluginBinding = binding;
@@ -156,7 +184,16 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
                     permissionDenied = false;
                     result.error("QRREADER_ERROR", "noPermission", null);
                 } else if (readingInstance != null) {
-                    result.error("ALREADY_RUNNING", "Start cannot be called when already running", "");
+                    // share the running camera; its size, lens and options stay as they are.
+                    List<String> formatStrings = methodCall.argument("formats");
+                    int id = readingInstance.subscriptions.add(BarcodeFormats.intFromStringList(formatStrings),
+                        roiFromArguments(methodCall));
+                    readingInstance.reader.updateConfig(readingInstance.subscriptions.unionFormats(), null);
+                    if (readingInstance.started) {
+                        result.success(startResponse(id));
+                    } else {
+                        readingInstance.pendingStarts.put(id, result);
+                    }
                 } else {
                     lastHeartbeatTimeout = methodCall.argument("heartbeatTimeout");
                     Integer targetWidth = methodCall.argument("targetWidth");
@@ -171,13 +208,17 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
                     }
 
                     int barcodeFormats = BarcodeFormats.intFromStringList(formatStrings);
+                    DetectionOptions options = DetectionOptions.fromArguments(methodCall.<Map<String, Object>>arguments());
 
                     TextureRegistry.SurfaceTextureEntry textureEntry = textures.createSurfaceTexture();
 
                     QrReader reader = new QrReader(targetWidth, targetHeight, zoomFactor.floatValue(), cameraLensFacing, activity, barcodeFormats,
-                        this, this, textureEntry.surfaceTexture());
+                        options, this, this, this, textureEntry.surfaceTexture());
 
-                    readingInstance = new ReadingInstance(reader, textureEntry, result);
+                    reader.setResultListeners(resultListeners);
+                    readingInstance = new ReadingInstance(reader, textureEntry);
+                    int id = readingInstance.subscriptions.add(barcodeFormats, roiFromArguments(methodCall));
+                    readingInstance.pendingStarts.put(id, result);
                     try {
                         reader.start(
                             lastHeartbeatTimeout == null ? 0 : lastHeartbeatTimeout
@@ -198,11 +239,41 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
             }
             case "stop": {
                 if (readingInstance != null && !waitingForPermissionResult) {
-                    stopReader();
+                    // without an id everything stops, as before the camera could be shared.
+                    Integer subscriptionId = methodCall.argument("subscriptionId");
+                    if (subscriptionId == null) {
+                        stopReader();
+                    } else if (readingInstance.subscriptions.remove(subscriptionId)) {
+                        if (readingInstance.subscriptions.isEmpty()) {
+                            stopReader();
+                        } else {
+                            readingInstance.reader.updateConfig(readingInstance.subscriptions.unionFormats(), null);
+                        }
+                    }
                 }
                 result.success(null);
                 break;
             }
+            case "updateConfig": {
+                // swapped in between frames, the camera keeps running.
+                if (readingInstance == null || waitingForPermissionResult) {
+                    result.success(false);
+                    break;
+                }
+                Integer subscriptionId = methodCall.argument("subscriptionId");
+                int id = subscriptionId != null ? subscriptionId : readingInstance.subscriptions.soleId();
+                List<String> formatStrings = methodCall.argument("formats");
+                Integer formats = formatStrings != null ? BarcodeFormats.intFromStringList(formatStrings) : null;
+                if (!readingInstance.subscriptions.update(id, formats, methodCall.hasArgument("roi"),
+                    roiFromArguments(methodCall))) {
+                    result.error("INVALID_ARGUMENT", "No such subscription", "Expecting the subscriptionId start returned");
+                    break;
+                }
+                readingInstance.reader.updateConfig(readingInstance.subscriptions.unionFormats(),
+                    methodCall.<List<String>>argument("preprocess"));
+                result.success(true);
+                break;
+            }
             case "setCameraLensFacing": {
                 if (readingInstance != null && !waitingForPermissionResult) {
                     Integer cameraLensFacing = methodCall.arguments();
@@ -253,6 +324,73 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
                 }
                 break;
             }
+            case "pauseDetection": {
+                if (readingInstance != null && !waitingForPermissionResult) {
+                    readingInstance.reader.pauseDetection();
+                }
+                result.success(null);
+                break;
+            }
+            case "resumeDetection": {
+                if (readingInstance != null && !waitingForPermissionResult) {
+                    readingInstance.reader.resumeDetection();
+                }
+                result.success(null);
+                break;
+            }
+            case "getInventory": {
+                InventoryStore inventory = readingInstance != null && !waitingForPermissionResult
+                    ? readingInstance.reader.getInventory()
+                    : null;
+                if (inventory != null) {
+                    Integer offset = methodCall.argument("offset");
+                    Integer limit = methodCall.argument("limit");
+                    result.success(inventory.page(offset == null ? 0 : offset, limit == null ? Integer.MAX_VALUE : limit));
+                } else {
+                    result.success(null);
+                }
+                break;
+            }
+            case "clearInventory": {
+                InventoryStore inventory = readingInstance != null && !waitingForPermissionResult
+                    ? readingInstance.reader.getInventory()
+                    : null;
+                if (inventory != null) {
+                    inventory.clear();
+                }
+                result.success(null);
+                break;
+            }
+            case "getStats": {
+                if (readingInstance != null && !waitingForPermissionResult) {
+                    Map<String, Object> stats = readingInstance.reader.getStats();
+                    readingInstance.subscriptions.putStats(stats);
+                    result.success(stats);
+                } else {
+                    result.success(null);
+                }
+                break;
+            }
+            case "dumpTrace": {
+                if (readingInstance != null && !waitingForPermissionResult) {
+                    try {
+                        result.success(readingInstance.reader.dumpTrace(methodCall.<String>argument("path")));
+                    } catch (IOException e) {
+                        result.error("IOException", "Error writing trace: " + e.getLocalizedMessage(), null);
+                    }
+                } else {
+                    result.success(null);
+                }
+                break;
+            }
+            case "getCameras": {
+                if (readingInstance != null && !waitingForPermissionResult) {
+                    result.success(readingInstance.reader.getCameras());
+                } else {
+                    result.success(null);
+                }
+                break;
+            }
             case "heartbeat": {
                 if (readingInstance != null) {
                     readingInstance.reader.heartBeat();
@@ -267,17 +405,59 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
 
     @Override
     public void qrRead(List<Map<String, Object>> data) {
-        channel.invokeMethod("qrRead", data);
+        if (readingInstance != null) {
+            readingInstance.subscriptions.dispatch(data, subscriptionSink);
+        }
+    }
+
+    @Override
+    public void inventoryDelta(List<Map<String, Object>> delta) {
+        channel.invokeMethod("inventoryDelta", delta);
+    }
+
+    @Override
+    public void lightingChanged(Map<String, Object> event) {
+        channel.invokeMethod("lightingChanged", event);
+    }
+
+    @Override
+    public void cameraRecovery(Map<String, Object> event) {
+        channel.invokeMethod("cameraRecovery", event);
+    }
+
+    @Override
+    public void powerLevelChanged(Map<String, Object> event) {
+        channel.invokeMethod("powerLevelChanged", event);
     }
 
     @Override
     public void started() {
+        readingInstance.started = true;
+        for (Map.Entry<Integer, Result> pending : readingInstance.pendingStarts.entrySet()) {
+            pending.getValue().success(startResponse(pending.getKey()));
+        }
+        readingInstance.pendingStarts.clear();
+    }
+
+    private Map<String, Object> startResponse(int subscriptionId) {
         Map<String, Object> response = new HashMap<>();
         response.put("surfaceWidth", readingInstance.reader.qrCamera.getWidth());
         response.put("surfaceHeight", readingInstance.reader.qrCamera.getHeight());
         response.put("surfaceOrientation", readingInstance.reader.qrCamera.getOrientation());
         response.put("textureId", readingInstance.textureEntry.id());
-        readingInstance.startResult.success(response);
+        response.put("subscriptionId", subscriptionId);
+        return response;
+    }
+
+    /**
+     * The optional roi argument, left, top, right and bottom in normalized preview coordinates.
+     */
+    private static double[] roiFromArguments(MethodCall methodCall) {
+        List<Double> roi = methodCall.argument("roi");
+        if (roi == null || roi.size() != 4) {
+            return null;
+        }
+        return new double[]{roi.get(0), roi.get(1), roi.get(2), roi.get(3)};
     }
 
     private List<String> stackTraceAsString(StackTraceElement[] stackTrace) {
@@ -297,23 +477,28 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
         Log.w(TAG, "Starting QR Mobile Vision failed", t);
         List<String> stackTraceStrings = stackTraceAsString(t.getStackTrace());
 
-        if (t instanceof QrReader.Exception) {
-            QrReader.Exception qrException = (QrReader.Exception) t;
-            readingInstance.startResult.error("QRREADER_ERROR", qrException.reason().name(), stackTraceStrings);
-        } else {
-            readingInstance.startResult.error("UNKNOWN_ERROR", t.getMessage(), stackTraceStrings);
+        for (Result startResult : readingInstance.pendingStarts.values()) {
+            if (t instanceof QrReader.Exception) {
+                QrReader.Exception qrException = (QrReader.Exception) t;
+                startResult.error("QRREADER_ERROR", qrException.reason().name(), stackTraceStrings);
+            } else {
+                startResult.error("UNKNOWN_ERROR", t.getMessage(), stackTraceStrings);
+            }
         }
+        readingInstance.pendingStarts.clear();
     }
 
     private class ReadingInstance {
         final QrReader reader;
         final TextureRegistry.SurfaceTextureEntry textureEntry;
-        final Result startResult;
+        final ScanSubscriptions subscriptions = new ScanSubscriptions();
+        // start calls waiting for the camera, by the subscription they were given
+        final Map<Integer, Result> pendingStarts = new LinkedHashMap<>();
+        boolean started;
 
-        private ReadingInstance(QrReader reader, TextureRegistry.SurfaceTextureEntry textureEntry, Result startResult) {
+        private ReadingInstance(QrReader reader, TextureRegistry.SurfaceTextureEntry textureEntry) {
             this.reader = reader;
             this.textureEntry = textureEntry;
-            this.startResult = startResult;
         }
     }
 }
\ No newline at end of file
@@ -2,29 +2,77 @@ package com.github.rmtmckenzie.qrmobilevision;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.content.res.Configuration;
 import android.graphics.SurfaceTexture;
 
 import com.google.android.gms.vision.CameraSource;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 class QrReader {
     private static final String TAG = "cgl.fqs.QrReader";
     final QrCamera qrCamera;
+    private final QrDetector2 detector;
     private final Activity context;
     private final QRReaderStartedCallback startedCallback;
     private Heartbeat heartbeat;
     private CameraSource camera;
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            qrCamera.trimMemory(level);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+        @Override
+        public void onLowMemory() {
+            qrCamera.trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+    };
 
     QrReader(int width, int height, float zoomFactor, int cameraLensFacing, Activity context, int barcodeFormats,
-             final QRReaderStartedCallback startedCallback, final QrReaderCallbacks communicator,
-             final SurfaceTexture texture) {
+             DetectionOptions options, final QRReaderStartedCallback startedCallback, final QrReaderCallbacks communicator,
+             final QrReaderEvents events, final SurfaceTexture texture) {
         this.context = context;
         this.startedCallback = startedCallback;
 
-        qrCamera = new QrCameraC2(width, height, zoomFactor, cameraLensFacing, texture, context, new QrDetector2(communicator, context, barcodeFormats));
+        detector = new QrDetector2(communicator, events, context, barcodeFormats, options);
+        QrCameraC2 cameraC2 = new QrCameraC2(width, height, zoomFactor, cameraLensFacing, texture, context, detector, options);
+        cameraC2.setRecoveryListener(new FrameWatchdog.Listener() {
+            @Override
+            public void onRecoveryEvent(Map<String, Object> event) {
+                events.cameraRecovery(event);
+            }
+        });
+        cameraC2.setPowerListener(new PowerScheduler.Listener() {
+            @Override
+            public void onLevelChanged(int level, int thermalStatus, boolean powerSave) {
+                Map<String, Object> event = new HashMap<>();
+                event.put("level", PowerScheduler.levelName(level));
+                event.put("thermalStatus", thermalStatus);
+                event.put("powerSave", powerSave);
+                event.put("targetFps", PowerScheduler.targetFps(level));
+                event.put("decodeScale", PowerScheduler.decodeScale(level));
+                events.powerLevelChanged(event);
+            }
+        });
+        qrCamera = cameraC2;
+        detector.setSingleShotListener(new Runnable() {
+            @Override
+            public void run() {
+                qrCamera.pauseDetection();
+            }
+        });
 
     }
 
@@ -55,6 +103,8 @@ class QrReader {
             }
 
             qrCamera.start();
+            context.getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+            context.getApplicationContext().registerComponentCallbacks(memoryCallbacks);
             startedCallback.started();
         } catch (Throwable t) {
             startedCallback.startingFailed(t);
@@ -77,6 +127,57 @@ class QrReader {
 
     public float getZoomFactor() {return qrCamera.getZoomFactor();}
 
+    void pauseDetection() {
+        qrCamera.pauseDetection();
+    }
+
+    void resumeDetection() {
+        qrCamera.resumeDetection();
+    }
+
+    void setResultListeners(List<QrResultListener> resultListeners) {
+        detector.setResultListeners(resultListeners);
+    }
+
+    /**
+     * Decode for this format mask, the union of everything sharing the camera, and with
+     * these preprocessing stages (null keeps them) from the next frame on. The camera
+     * session is left as it is.
+     */
+    void updateConfig(int formats, List<String> preprocess) {
+        detector.updateConfig(formats, preprocess);
+    }
+
+    InventoryStore getInventory() {
+        return detector.getInventory();
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = detector.getStats();
+        qrCamera.putStats(stats);
+        return stats;
+    }
+
+    /**
+     * Write the recorded frame spans as a Chrome trace to path, or to the cache
+     * directory without one.
+     *
+     * @return the file written, or null if spans aren't being recorded
+     */
+    String dumpTrace(String path) throws IOException {
+        FrameTracer tracer = detector.getTracer();
+        if (!tracer.isRecording()) {
+            return null;
+        }
+        File file = path != null ? new File(path) : new File(context.getCacheDir(), "qr_mobile_vision_trace.json");
+        tracer.writeChromeTrace(file);
+        return file.getAbsolutePath();
+    }
+
+    List<Map<String, Object>> getCameras() {
+        return qrCamera.getCameras();
+    }
+
     void stop() {
         if (heartbeat != null) {
             heartbeat.stop();
@@ -89,7 +190,9 @@ class QrReader {
 
             camera = null;
         }
+        context.getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
         qrCamera.stop();
+        detector.release();
     }
 
     void heartBeat() {
@@ -0,0 +1,18 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pipeline events beyond results, kept apart from the public QrReaderCallbacks so
+ * new events don't add methods hosts implementing that interface would have to write.
+ */
+interface QrReaderEvents {
+    void inventoryDelta(List<Map<String, Object>> delta);
+
+    void lightingChanged(Map<String, Object> event);
+
+    void cameraRecovery(Map<String, Object> event);
+
+    void powerLevelChanged(Map<String, Object> event);
+}
@@ -0,0 +1,19 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.util.List;
+
+/**
+ * Receives decoded results in the host app's own code, without going through dart.
+ * Register with QrMobileVisionPlugin.addResultListener.
+ */
+public interface QrResultListener {
+    /**
+     * Called on the detection worker thread for every frame in which something was
+     * decoded, before the results are sent on to dart. Anything slow should be handed
+     * off, as the next frame waits for this to return.
+     *
+     * @param results        - everything decoded in the frame
+     * @param timestampNanos - the camera timestamp of the frame
+     */
+    void onResults(List<ScanResult> results, long timestampNanos);
+}
@@ -0,0 +1,88 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Rect;
+
+/**
+ * Tracks where codes were found in recent frames so following frames only need
+ * a crop around the predicted location decoded instead of the whole frame.
+ * <p>
+ * All rectangles here are in raw (unrotated) image coordinates. Only used from
+ * the detection worker.
+ */
+class RoiTracker {
+    private final float expansion;
+    private final int fullFrameInterval;
+
+    private final Rect tracked = new Rect();
+    private boolean locked;
+    private boolean hasVelocity;
+    private int velocityX;
+    private int velocityY;
+    private int framesSinceFullFrame;
+
+    /**
+     * @param expansion         - margin added on each side of the tracked box, as a fraction of its larger side
+     * @param fullFrameInterval - a full frame is decoded at least once every this many frames
+     */
+    RoiTracker(float expansion, int fullFrameInterval) {
+        this.expansion = expansion;
+        this.fullFrameInterval = fullFrameInterval;
+    }
+
+    /**
+     * Work out the crop for the next frame. Returns false if the whole frame should be
+     * decoded, either because nothing is tracked or a periodic full frame is due.
+     */
+    boolean nextCrop(int width, int height, Rect crop) {
+        if (!locked || ++framesSinceFullFrame >= fullFrameInterval) {
+            framesSinceFullFrame = 0;
+            return false;
+        }
+
+        int margin = (int) (Math.max(tracked.width(), tracked.height()) * expansion);
+        int left = tracked.left - margin;
+        int top = tracked.top - margin;
+        int right = tracked.right + margin;
+        int bottom = tracked.bottom + margin;
+        if (hasVelocity) {
+            left += velocityX;
+            right += velocityX;
+            top += velocityY;
+            bottom += velocityY;
+        }
+
+        // keep chroma subsampling aligned, so crop to even coordinates.
+        left = Math.max(0, left) & ~1;
+        top = Math.max(0, top) & ~1;
+        right = Math.min(width, right) & ~1;
+        bottom = Math.min(height, bottom) & ~1;
+        if (right - left < 2 || bottom - top < 2) {
+            locked = false;
+            return false;
+        }
+
+        crop.set(left, top, right, bottom);
+        return true;
+    }
+
+    /**
+     * Update the tracked region with the raw bounding box of everything found in the
+     * last frame, or null if nothing was found.
+     */
+    void onResults(Rect found) {
+        if (found == null) {
+            // lost it - next frame goes back to the whole image.
+            locked = false;
+            hasVelocity = false;
+            return;
+        }
+
+        if (locked) {
+            velocityX = found.centerX() - tracked.centerX();
+            velocityY = found.centerY() - tracked.centerY();
+            hasVelocity = true;
+        }
+        tracked.set(found);
+        locked = true;
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Point;
+
+/**
+ * One decoded code, as handed to a QrResultListener.
+ */
+public final class ScanResult {
+    public final String rawValue;
+    public final String displayValue;
+    // null for formats this plugin doesn't name
+    public final BarcodeFormats format;
+    // in the upright coordinates of the analysed frame, as sent to dart
+    public final Point[] cornerPoints;
+    // x and y of each corner in turn, normalized to the upright preview; null until the preview is set up
+    public final double[] previewPoints;
+
+    ScanResult(String rawValue, String displayValue, BarcodeFormats format, Point[] cornerPoints, double[] previewPoints) {
+        this.rawValue = rawValue;
+        this.displayValue = displayValue;
+        this.format = format;
+        this.cornerPoints = cornerPoints;
+        this.previewPoints = previewPoints;
+    }
+}
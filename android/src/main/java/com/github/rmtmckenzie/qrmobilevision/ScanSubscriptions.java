@@ -0,0 +1,154 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scanners sharing one running camera and detection pipeline, each with its own
+ * format mask and region of interest. The camera stays open while any are left.
+ * <p>
+ * Frames are decoded once, for the union of the masks, and each subscription is sent
+ * the results matching its mask and with their centre inside its region. Regions are
+ * in the normalized, upright preview coordinates of the results' previewPoints; results
+ * without those go to every region. Main thread only.
+ */
+class ScanSubscriptions {
+
+    interface Sink {
+        void deliver(int subscriptionId, List<Map<String, Object>> codes);
+    }
+
+    private static class Subscription {
+        final int formats;
+        // left, top, right and bottom, or null for the whole preview
+        final double[] roi;
+
+        Subscription(int formats, double[] roi) {
+            this.formats = formats;
+            this.roi = roi;
+        }
+
+        boolean accepts(Map<String, Object> code) {
+            Object format = code.get("format");
+            if (formats != BarcodeFormats.ALL_FORMATS.intValue && format instanceof Integer
+                && (formats & (Integer) format) == 0) {
+                return false;
+            }
+            if (roi == null) {
+                return true;
+            }
+            Object points = code.get("previewPoints");
+            if (!(points instanceof List) || ((List<?>) points).isEmpty()) {
+                return true;
+            }
+            double x = 0;
+            double y = 0;
+            List<?> pointList = (List<?>) points;
+            for (Object point : pointList) {
+                x += ((double[]) point)[0];
+                y += ((double[]) point)[1];
+            }
+            x /= pointList.size();
+            y /= pointList.size();
+            return x >= roi[0] && x <= roi[2] && y >= roi[1] && y <= roi[3];
+        }
+    }
+
+    private final SparseArray<Subscription> subscriptions = new SparseArray<>();
+    private int nextId = 1;
+    private long resultsDelivered;
+    private long resultsFiltered;
+
+    /**
+     * @param roi - left, top, right and bottom in normalized preview coordinates, or null
+     * @return the new subscription's id
+     */
+    int add(int formats, double[] roi) {
+        int id = nextId++;
+        subscriptions.put(id, new Subscription(formats, roi));
+        return id;
+    }
+
+    /**
+     * Change a subscription's mask and region, keeping whichever isn't given.
+     *
+     * @param formats - the new mask, or null to keep it
+     * @param setRoi  - whether to replace the region with roi, which can be null for the whole preview
+     * @return whether there was a subscription with that id
+     */
+    boolean update(int id, Integer formats, boolean setRoi, double[] roi) {
+        Subscription subscription = subscriptions.get(id);
+        if (subscription == null) {
+            return false;
+        }
+        subscriptions.put(id, new Subscription(formats != null ? formats : subscription.formats,
+            setRoi ? roi : subscription.roi));
+        return true;
+    }
+
+    /**
+     * The only subscription's id, or -1 if there isn't exactly one.
+     */
+    int soleId() {
+        return subscriptions.size() == 1 ? subscriptions.keyAt(0) : -1;
+    }
+
+    /**
+     * @return whether there was a subscription with that id
+     */
+    boolean remove(int id) {
+        if (subscriptions.indexOfKey(id) < 0) {
+            return false;
+        }
+        subscriptions.remove(id);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return subscriptions.size() == 0;
+    }
+
+    /**
+     * The mask covering every subscription, ALL_FORMATS if any wants them all.
+     */
+    int unionFormats() {
+        int union = 0;
+        for (int i = 0; i < subscriptions.size(); ++i) {
+            int formats = subscriptions.valueAt(i).formats;
+            if (formats == BarcodeFormats.ALL_FORMATS.intValue) {
+                return formats;
+            }
+            union |= formats;
+        }
+        return union;
+    }
+
+    /**
+     * Send each subscription its share of one frame's results, which like the frame's
+     * own can be empty.
+     */
+    void dispatch(List<Map<String, Object>> codes, Sink sink) {
+        for (int i = 0; i < subscriptions.size(); ++i) {
+            Subscription subscription = subscriptions.valueAt(i);
+            List<Map<String, Object>> accepted = new ArrayList<>(codes.size());
+            for (Map<String, Object> code : codes) {
+                if (subscription.accepts(code)) {
+                    accepted.add(code);
+                } else {
+                    ++resultsFiltered;
+                }
+            }
+            resultsDelivered += accepted.size();
+            sink.deliver(subscriptions.keyAt(i), accepted);
+        }
+    }
+
+    void putStats(Map<String, Object> stats) {
+        stats.put("subscriptions", subscriptions.size());
+        stats.put("subscriptionResultsDelivered", resultsDelivered);
+        stats.put("subscriptionResultsFiltered", resultsFiltered);
+    }
+}
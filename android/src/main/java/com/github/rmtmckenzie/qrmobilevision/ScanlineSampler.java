@@ -0,0 +1,170 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Point;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Fast path for linear (1D) formats. Rather than decoding the whole frame, a few
+ * lines across it - rows, columns and both diagonals - are sampled from the luma
+ * plane. Each line is repeated into a band of a small strip image so that a code
+ * crossed by a line shows up as vertical bars, and only the strip is decoded.
+ * <p>
+ * The strip is as wide as the diagonal is long, so every line gets at least one
+ * sample per pixel it crosses and narrow bars aren't aliased away.
+ * <p>
+ * Every fullFrameInterval frames the whole frame is decoded instead, in case a
+ * code isn't crossed by any line. Only used from the detection worker.
+ */
+class ScanlineSampler {
+    // keeps the strip bounded on very large frames
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final int BAND_HEIGHT = 12;
+    // white rows between bands so codes in neighbouring bands stay apart
+    private static final int BAND_GAP = 4;
+    private static final int BAND_PITCH = BAND_HEIGHT + BAND_GAP;
+    private static final int LINE_COUNT = 8;
+
+    static final int STRIP_HEIGHT = LINE_COUNT * BAND_PITCH;
+
+    private final int fullFrameInterval;
+    // start and end point of each line in raw image coordinates: x0, y0, x1, y1
+    private final int[] lines = new int[LINE_COUNT * 4];
+    // samples per line, which is also the strip width
+    private volatile int lineLength;
+    private byte[] strip;
+    private ByteBuffer stripBuffer;
+    private int lineWidth;
+    private int lineHeight;
+    private int framesSinceFullFrame;
+
+    ScanlineSampler(int fullFrameInterval) {
+        this.fullFrameInterval = fullFrameInterval;
+    }
+
+    /**
+     * Width of the strip sample returns, 0 before the first frame.
+     */
+    int getStripWidth() {
+        return lineLength;
+    }
+
+    /**
+     * Whether the next frame should only have its scanlines decoded.
+     */
+    boolean useScanlines() {
+        if (++framesSinceFullFrame >= fullFrameInterval) {
+            framesSinceFullFrame = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sample the lines of the image into the strip and return it as NV21, getStripWidth()
+     * by STRIP_HEIGHT. The buffer is reused by the next call.
+     */
+    ByteBuffer sample(byte[] luma, int rowStride, int pixelStride, int width, int height) {
+        if (width != lineWidth || height != lineHeight) {
+            layoutLines(width, height);
+        }
+
+        int length = lineLength;
+        for (int line = 0; line < LINE_COUNT; ++line) {
+            int x0 = lines[line * 4], y0 = lines[line * 4 + 1];
+            int dx = lines[line * 4 + 2] - x0, dy = lines[line * 4 + 3] - y0;
+            int bandStart = line * BAND_PITCH * length;
+
+            for (int s = 0; s < length; ++s) {
+                int x = x0 + dx * s / (length - 1);
+                int y = y0 + dy * s / (length - 1);
+                strip[bandStart + s] = luma[y * rowStride + x * pixelStride];
+            }
+            for (int row = 1; row < BAND_HEIGHT; ++row) {
+                System.arraycopy(strip, bandStart, strip, bandStart + row * length, length);
+            }
+        }
+
+        stripBuffer.clear();
+        return stripBuffer;
+    }
+
+    private void layoutLines(int width, int height) {
+        lineWidth = width;
+        lineHeight = height;
+        int length = (int) Math.ceil(Math.hypot(width, height));
+        length = Math.min(MAX_LINE_LENGTH, (length + 1) & ~1);
+        if (length != lineLength) {
+            strip = new byte[length * STRIP_HEIGHT * 3 / 2];
+            Arrays.fill(strip, (byte) 255);
+            // no colour
+            Arrays.fill(strip, length * STRIP_HEIGHT, strip.length, (byte) 127);
+            stripBuffer = ByteBuffer.wrap(strip);
+            lineLength = length;
+        }
+        int right = width - 1, bottom = height - 1;
+        int line = 0;
+        for (int i = 1; i <= 3; ++i) {
+            line = setLine(line, 0, bottom * i / 4, right, bottom * i / 4);
+        }
+        for (int i = 1; i <= 3; ++i) {
+            line = setLine(line, right * i / 4, 0, right * i / 4, bottom);
+        }
+        line = setLine(line, 0, 0, right, bottom);
+        setLine(line, 0, bottom, right, 0);
+    }
+
+    private int setLine(int line, int x0, int y0, int x1, int y1) {
+        lines[line * 4] = x0;
+        lines[line * 4 + 1] = y0;
+        lines[line * 4 + 2] = x1;
+        lines[line * 4 + 3] = y1;
+        return line + 1;
+    }
+
+    /**
+     * Replace the corner points of results decoded from the strip with points along the
+     * line they were found on, in upright coordinates of the full frame. The extent across
+     * the line isn't known, so the quad is given a height of a quarter of its length.
+     */
+    void mapToFrame(SparseArray<Barcode> detectedItems, int rotation, int width, int height) {
+        int length = lineLength;
+        for (int i = 0; i < detectedItems.size(); ++i) {
+            Barcode barcode = detectedItems.valueAt(i);
+            if (barcode.cornerPoints == null || barcode.cornerPoints.length == 0) continue;
+
+            int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, sumY = 0;
+            for (Point point : barcode.cornerPoints) {
+                minX = Math.min(minX, point.x);
+                maxX = Math.max(maxX, point.x);
+                sumY += point.y;
+            }
+            int line = Math.max(0, Math.min(LINE_COUNT - 1, sumY / barcode.cornerPoints.length / BAND_PITCH));
+            int x0 = lines[line * 4], y0 = lines[line * 4 + 1];
+            int dx = lines[line * 4 + 2] - x0, dy = lines[line * 4 + 3] - y0;
+
+            float startX = x0 + dx * (float) minX / (length - 1);
+            float startY = y0 + dy * (float) minX / (length - 1);
+            float endX = x0 + dx * (float) maxX / (length - 1);
+            float endY = y0 + dy * (float) maxX / (length - 1);
+            // perpendicular to the line, an eighth of the segment length each way
+            float normalX = -(endY - startY) / 8;
+            float normalY = (endX - startX) / 8;
+
+            Point[] cornerPoints = new Point[]{
+                new Point((int) (startX - normalX), (int) (startY - normalY)),
+                new Point((int) (endX - normalX), (int) (endY - normalY)),
+                new Point((int) (endX + normalX), (int) (endY + normalY)),
+                new Point((int) (startX + normalX), (int) (startY + normalY)),
+            };
+            for (Point point : cornerPoints) {
+                FrameCoordinates.toUpright(point, rotation, width, height);
+            }
+            barcode.cornerPoints = cornerPoints;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detects whether the camera is looking at the same scene as the last frame that
+ * was decoded without any result, by comparing block means of a luma thumbnail.
+ */
+class SceneChangeDetector {
+    static final int GRID_WIDTH = 32;
+    static final int GRID_HEIGHT = 24;
+    static final int GRID_SIZE = GRID_WIDTH * GRID_HEIGHT;
+
+    // samples taken along each side of a block; the block mean is estimated from these
+    private static final int SAMPLES_PER_BLOCK_SIDE = 4;
+    // number of blocks that must differ before the scene counts as changed,
+    // so a single noisy block doesn't defeat skipping.
+    private static final int MIN_CHANGED_BLOCKS = 2;
+
+    private final int threshold;
+    private final int refreshInterval;
+
+    private int[] reference = new int[GRID_SIZE];
+    private int[] candidate = new int[GRID_SIZE];
+    private boolean hasReference;
+    private boolean hasCandidate;
+    private int skippedSinceRefresh;
+
+    /**
+     * @param threshold       - difference in mean luma a block needs to count as changed
+     * @param refreshInterval - number of consecutive skipped frames after which a frame is decoded anyway
+     */
+    SceneChangeDetector(int threshold, int refreshInterval) {
+        this.threshold = threshold;
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Fill thumbnail with block means sampled from the luma plane. Reads the buffer with
+     * absolute gets so its position is left untouched for the later copy.
+     */
+    static void sampleThumbnail(ByteBuffer yPlane, int rowStride, int pixelStride, int width, int height, int[] thumbnail) {
+        int blockWidth = width / GRID_WIDTH;
+        int blockHeight = height / GRID_HEIGHT;
+        int stepX = Math.max(1, blockWidth / SAMPLES_PER_BLOCK_SIDE);
+        int stepY = Math.max(1, blockHeight / SAMPLES_PER_BLOCK_SIDE);
+
+        for (int gy = 0; gy < GRID_HEIGHT; ++gy) {
+            int top = gy * blockHeight + stepY / 2;
+            for (int gx = 0; gx < GRID_WIDTH; ++gx) {
+                int left = gx * blockWidth + stepX / 2;
+                int sum = 0;
+                for (int sy = 0; sy < SAMPLES_PER_BLOCK_SIDE; ++sy) {
+                    int row = (top + sy * stepY) * rowStride;
+                    for (int sx = 0; sx < SAMPLES_PER_BLOCK_SIDE; ++sx) {
+                        sum += yPlane.get(row + (left + sx * stepX) * pixelStride) & 0xFF;
+                    }
+                }
+                thumbnail[gy * GRID_WIDTH + gx] = sum / (SAMPLES_PER_BLOCK_SIDE * SAMPLES_PER_BLOCK_SIDE);
+            }
+        }
+    }
+
+    /**
+     * Whether the frame with this thumbnail can be skipped, i.e. it matches the last
+     * frame that decoded nothing and no periodic refresh is due.
+     */
+    synchronized boolean shouldSkip(int[] thumbnail) {
+        if (!hasReference) {
+            return false;
+        }
+
+        int changedBlocks = 0;
+        for (int i = 0; i < GRID_SIZE; ++i) {
+            if (Math.abs(thumbnail[i] - reference[i]) > threshold && ++changedBlocks >= MIN_CHANGED_BLOCKS) {
+                hasReference = false;
+                skippedSinceRefresh = 0;
+                return false;
+            }
+        }
+
+        if (++skippedSinceRefresh > refreshInterval) {
+            skippedSinceRefresh = 0;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remember the thumbnail of the frame that is about to be decoded.
+     */
+    synchronized void setCandidate(int[] thumbnail) {
+        System.arraycopy(thumbnail, 0, candidate, 0, GRID_SIZE);
+        hasCandidate = true;
+    }
+
+    /**
+     * Called once the candidate frame has been decoded. A frame without results becomes
+     * the new reference; a frame with results clears it so scanning carries on.
+     */
+    synchronized void onDecoded(boolean found) {
+        if (!hasCandidate) {
+            return;
+        }
+        hasCandidate = false;
+
+        if (found) {
+            hasReference = false;
+        } else {
+            int[] swap = reference;
+            reference = candidate;
+            candidate = swap;
+            hasReference = true;
+        }
+        skippedSinceRefresh = 0;
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Rect;
+
+/**
+ * Maps rectangles in raw image coordinates of the analysis stream to the sensor's
+ * active array, as used by metering regions.
+ * <p>
+ * Raw image buffers are in the sensor's own orientation, and aren't mirrored for
+ * front facing lenses, so neither sensor orientation nor lens facing changes the
+ * mapping; FrameCoordinates.toRaw brings detector results into raw coordinates
+ * whatever the display rotation was. What does matter is the crop region: the
+ * stream shows the largest centred area of the crop region with its own aspect ratio.
+ */
+final class SensorCoordinateMapper {
+
+    private SensorCoordinateMapper() {
+    }
+
+    /**
+     * @param raw         - rectangle in raw image coordinates
+     * @param imageWidth  - width of the analysis image
+     * @param imageHeight - height of the analysis image
+     * @param cropRegion  - current SCALER_CROP_REGION, in active array coordinates
+     * @param out         - set to the rectangle in active array coordinates, clipped to the crop region
+     */
+    static void toSensor(Rect raw, int imageWidth, int imageHeight, Rect cropRegion, Rect out) {
+        // the part of the crop region actually covered by the stream
+        float cropWidth = cropRegion.width();
+        float cropHeight = cropRegion.height();
+        float visibleWidth = cropWidth;
+        float visibleHeight = cropHeight;
+        if (cropWidth * imageHeight > cropHeight * imageWidth) {
+            visibleWidth = cropHeight * imageWidth / imageHeight;
+        } else {
+            visibleHeight = cropWidth * imageHeight / imageWidth;
+        }
+        float left = cropRegion.left + (cropWidth - visibleWidth) / 2;
+        float top = cropRegion.top + (cropHeight - visibleHeight) / 2;
+        float scaleX = visibleWidth / imageWidth;
+        float scaleY = visibleHeight / imageHeight;
+
+        out.set(
+            Math.round(left + raw.left * scaleX),
+            Math.round(top + raw.top * scaleY),
+            Math.round(left + raw.right * scaleX),
+            Math.round(top + raw.bottom * scaleY));
+        if (!out.intersect(cropRegion)) {
+            out.setEmpty();
+        }
+    }
+}
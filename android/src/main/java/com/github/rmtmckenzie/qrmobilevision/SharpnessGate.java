@@ -0,0 +1,78 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+/**
+ * Rejects motion-blurred frames before they reach the detector, using the variance
+ * of a Laplacian over a downsampled luma grid as the focus measure.
+ * <p>
+ * The threshold adapts to the scene: a frame must reach a fraction of the recent
+ * peak sharpness, and never less than a fixed floor.
+ */
+class SharpnessGate {
+    // the luma plane is sampled on a grid roughly this many points wide
+    private static final int GRID_WIDTH = 160;
+    // how quickly the remembered peak falls off, per evaluated frame
+    private static final double PEAK_DECAY = 0.97;
+
+    private final double minThreshold;
+    private final double relativeThreshold;
+    private double peak;
+    private volatile double threshold;
+
+    /**
+     * @param minThreshold      - sharpness below which a frame is always rejected
+     * @param relativeThreshold - fraction of the recent peak sharpness a frame needs to be accepted
+     */
+    SharpnessGate(double minThreshold, double relativeThreshold) {
+        this.minThreshold = minThreshold;
+        this.relativeThreshold = relativeThreshold;
+        this.threshold = minThreshold;
+    }
+
+    /**
+     * Variance of the 4-neighbour Laplacian sampled every step pixels, step being
+     * chosen so roughly GRID_WIDTH samples are taken across each row.
+     */
+    static double measure(byte[] luma, int rowStride, int pixelStride, int width, int height) {
+        int step = Math.max(1, width / GRID_WIDTH);
+        long sum = 0;
+        long sumSquares = 0;
+        int count = 0;
+
+        for (int y = step; y < height - step; y += step) {
+            int row = y * rowStride;
+            int rowAbove = row - step * rowStride;
+            int rowBelow = row + step * rowStride;
+            for (int x = step; x < width - step; x += step) {
+                int offset = x * pixelStride;
+                int laplacian = 4 * (luma[row + offset] & 0xFF)
+                    - (luma[row + offset - step * pixelStride] & 0xFF)
+                    - (luma[row + offset + step * pixelStride] & 0xFF)
+                    - (luma[rowAbove + offset] & 0xFF)
+                    - (luma[rowBelow + offset] & 0xFF);
+                sum += laplacian;
+                sumSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+        double mean = (double) sum / count;
+        return (double) sumSquares / count - mean * mean;
+    }
+
+    /**
+     * Update the adaptive threshold with this frame's sharpness and return whether
+     * the frame is sharp enough to decode. Only called from the detection worker.
+     */
+    boolean accept(double sharpness) {
+        peak = Math.max(sharpness, peak * PEAK_DECAY);
+        threshold = Math.max(minThreshold, peak * relativeThreshold);
+        return sharpness >= threshold;
+    }
+
+    double getThreshold() {
+        return threshold;
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Point;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * Decides between a cheap pass - a downscaled frame decoded only for the format
+ * seen most recently - and the full resolution pass with every requested format.
+ * The full pass only runs once the cheap pass has missed for a number of frames
+ * in a row. Only used from the detection worker.
+ */
+class TierEscalation {
+    static final String TIER_CHEAP = "cheap";
+    static final String TIER_FULL = "full";
+
+    private final int scale;
+    private final int maxCheapMisses;
+    private final int allFormats;
+    private int recentFormats;
+    private int cheapMisses;
+
+    /**
+     * @param scale          - factor each side of the frame is divided by for the cheap pass
+     * @param maxCheapMisses - consecutive cheap misses after which a full pass runs
+     * @param allFormats     - format mask the full pass decodes
+     */
+    TierEscalation(int scale, int maxCheapMisses, int allFormats) {
+        this.scale = scale;
+        this.maxCheapMisses = maxCheapMisses;
+        this.allFormats = allFormats;
+        this.recentFormats = allFormats;
+    }
+
+    boolean useCheapPass() {
+        return cheapMisses < maxCheapMisses;
+    }
+
+    int getScale() {
+        return scale;
+    }
+
+    /**
+     * Formats the cheap pass should decode; all of them until something has been found.
+     */
+    int getCheapFormats() {
+        return recentFormats;
+    }
+
+    void onCheapResult(SparseArray<Barcode> detectedItems) {
+        if (detectedItems != null && detectedItems.size() > 0) {
+            cheapMisses = 0;
+            // bring the points back to full frame size
+            for (int i = 0; i < detectedItems.size(); ++i) {
+                Point[] cornerPoints = detectedItems.valueAt(i).cornerPoints;
+                if (cornerPoints == null) continue;
+                for (Point point : cornerPoints) {
+                    point.x *= scale;
+                    point.y *= scale;
+                }
+            }
+        } else {
+            cheapMisses++;
+        }
+    }
+
+    void onFullResult(SparseArray<Barcode> detectedItems) {
+        // either way give the cheap pass another go on the next frames.
+        cheapMisses = 0;
+        if (detectedItems != null && detectedItems.size() > 0) {
+            int formats = 0;
+            for (int i = 0; i < detectedItems.size(); ++i) {
+                formats |= detectedItems.valueAt(i).format;
+            }
+            recentFormats = formats == 0 ? allFormats : formats;
+        }
+    }
+}
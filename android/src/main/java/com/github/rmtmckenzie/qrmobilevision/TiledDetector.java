@@ -0,0 +1,164 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+import com.google.android.gms.vision.barcode.BarcodeDetector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Splits a frame into a grid of overlapping tiles and decodes them in parallel,
+ * each tile with its own detector, for scenes with many small codes.
+ * <p>
+ * Results are merged into full frame coordinates; a code seen in more than one
+ * tile (same raw value, overlapping corners) is only reported once.
+ */
+class TiledDetector {
+    private static final String TAG = "cgl.fqs.TiledDetector";
+
+    private final int columns;
+    private final int rows;
+    private final float overlap;
+    private final ForkJoinPool pool;
+    private final List<TileTask> tasks;
+
+    private QrDetector2.QrImage image;
+    private int rotation;
+
+    /**
+     * @param overlap - fraction of a tile's size by which it extends into its neighbours
+     */
+    TiledDetector(Context context, int formats, int columns, int rows, float overlap) {
+        this.columns = columns;
+        this.rows = rows;
+        this.overlap = overlap;
+
+        int tiles = columns * rows;
+        this.pool = new ForkJoinPool(Math.max(1, Math.min(tiles, Runtime.getRuntime().availableProcessors())));
+        this.tasks = new ArrayList<>(tiles);
+        for (int i = 0; i < tiles; ++i) {
+            // detectors aren't thread safe, so every tile gets its own.
+            Detector<Barcode> detector = new BarcodeDetector.Builder(context.getApplicationContext()).setBarcodeFormats(formats).build();
+            tasks.add(new TileTask(i % columns, i / columns, detector));
+        }
+    }
+
+    /**
+     * Decode all tiles of the image. The caller must hold the image's lock until this returns.
+     */
+    SparseArray<Barcode> detect(QrDetector2.QrImage image, int rotation) {
+        this.image = image;
+        this.rotation = rotation;
+
+        List<Future<SparseArray<Barcode>>> futures;
+        try {
+            futures = pool.invokeAll(tasks);
+        } catch (RejectedExecutionException e) {
+            // released while a frame was queued.
+            return null;
+        }
+
+        List<Barcode> merged = new ArrayList<>();
+        for (int i = 0; i < futures.size(); ++i) {
+            SparseArray<Barcode> tileItems;
+            try {
+                tileItems = futures.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                Log.w(TAG, "Decoding tile failed", e);
+                continue;
+            }
+            if (tileItems == null) continue;
+
+            Rect crop = tasks.get(i).crop;
+            for (int j = 0; j < tileItems.size(); ++j) {
+                Barcode barcode = tileItems.valueAt(j);
+                if (barcode.cornerPoints != null) {
+                    for (Point point : barcode.cornerPoints) {
+                        FrameCoordinates.fromCrop(point, crop, rotation, image.width, image.height);
+                    }
+                }
+                if (!isDuplicate(merged, barcode)) {
+                    merged.add(barcode);
+                }
+            }
+        }
+
+        this.image = null;
+
+        SparseArray<Barcode> result = new SparseArray<>(merged.size());
+        for (int i = 0; i < merged.size(); ++i) {
+            result.put(i, merged.get(i));
+        }
+        return result;
+    }
+
+    void release() {
+        pool.shutdownNow();
+        for (TileTask task : tasks) {
+            task.detector.release();
+        }
+    }
+
+    private static boolean isDuplicate(List<Barcode> merged, Barcode barcode) {
+        Rect bounds = barcode.getBoundingBox();
+        for (Barcode other : merged) {
+            if (other.rawValue == null ? barcode.rawValue != null : !other.rawValue.equals(barcode.rawValue)) {
+                continue;
+            }
+            Rect otherBounds = other.getBoundingBox();
+            if (bounds == null || otherBounds == null || Rect.intersects(bounds, otherBounds)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class TileTask implements Callable<SparseArray<Barcode>> {
+        final int column;
+        final int row;
+        final Detector<Barcode> detector;
+        final Rect crop = new Rect();
+
+        TileTask(int column, int row, Detector<Barcode> detector) {
+            this.column = column;
+            this.row = row;
+            this.detector = detector;
+        }
+
+        @Override
+        public SparseArray<Barcode> call() {
+            QrDetector2.QrImage image = TiledDetector.this.image;
+            int tileWidth = image.width / columns;
+            int tileHeight = image.height / rows;
+            int marginX = (int) (tileWidth * overlap);
+            int marginY = (int) (tileHeight * overlap);
+
+            // even coordinates keep the chroma planes aligned.
+            int left = Math.max(0, column * tileWidth - marginX) & ~1;
+            int top = Math.max(0, row * tileHeight - marginY) & ~1;
+            int right = Math.min(image.width, (column + 1) * tileWidth + marginX) & ~1;
+            int bottom = Math.min(image.height, (row + 1) * tileHeight + marginY) & ~1;
+            crop.set(left, top, right, bottom);
+
+            ByteBuffer buffer = image.toNv21(left, top, right - left, bottom - top, false);
+            Frame.Builder builder = new Frame.Builder().setImageData(buffer, right - left, bottom - top, ImageFormat.NV21);
+            builder.setRotation(rotation);
+            return detector.detect(builder.build());
+        }
+    }
+}
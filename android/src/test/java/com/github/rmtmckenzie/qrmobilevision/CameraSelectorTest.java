@@ -0,0 +1,136 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.hardware.camera2.CameraMetadata;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Candidates stand in for CameraCharacteristics, as fromCharacteristics would build them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CameraSelectorTest {
+    private static final int FULL = CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_FULL;
+    private static final int LIMITED = CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED;
+    private static final int LEVEL_3 = CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_3;
+    private static final int LEGACY = CameraMetadata.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+
+    private static CameraSelector.Candidate camera(String id, float minFocusDistance, boolean autoFocus, int level,
+                                                   double fps) {
+        return new CameraSelector.Candidate(id, null, minFocusDistance, autoFocus, level, fps);
+    }
+
+    private static List<String> ids(List<CameraSelector.Candidate> candidates) {
+        String[] ids = new String[candidates.size()];
+        for (int i = 0; i < ids.length; ++i) {
+            CameraSelector.Candidate candidate = candidates.get(i);
+            ids[i] = candidate.physicalCameraId != null ? candidate.cameraId + "/" + candidate.physicalCameraId : candidate.cameraId;
+        }
+        return Arrays.asList(ids);
+    }
+
+    @Test
+    public void closeFocusOutweighsEverythingElse() {
+        // a fixed focus wide camera on a top hardware level against a macro capable main camera
+        CameraSelector.Candidate wide = camera("wide", 0, false, LEVEL_3, 30);
+        CameraSelector.Candidate main = camera("main", 10, true, LIMITED, 30);
+        assertEquals(Arrays.asList("main", "wide"), ids(CameraSelector.rank(Arrays.asList(wide, main))));
+    }
+
+    @Test
+    public void weightsApplyInOrder() {
+        // each differs from the reference in one property, by the full range of that property
+        CameraSelector.Candidate reference = camera("reference", 0, false, LEGACY, 0);
+        CameraSelector.Candidate focus = camera("focus", 10, false, LEGACY, 0);
+        CameraSelector.Candidate autoFocus = camera("autoFocus", 0, true, LEGACY, 0);
+        CameraSelector.Candidate throughput = camera("throughput", 0, false, LEGACY, 30);
+        CameraSelector.Candidate hardware = camera("hardware", 0, false, LEVEL_3, 0);
+
+        List<CameraSelector.Candidate> ranked = CameraSelector.rank(
+            Arrays.asList(reference, hardware, throughput, autoFocus, focus));
+        assertEquals(Arrays.asList("focus", "autoFocus", "throughput", "hardware", "reference"), ids(ranked));
+        assertEquals(40, focus.score, 1e-9);
+        assertEquals(25, autoFocus.score, 1e-9);
+        assertEquals(20, throughput.score, 1e-9);
+        assertEquals(15, hardware.score, 1e-9);
+        assertEquals(0, reference.score, 1e-9);
+    }
+
+    @Test
+    public void scoresAreCapped() {
+        // focusing closer than 10cm or streaming faster than 30fps earns nothing extra
+        CameraSelector.Candidate capped = camera("capped", 10, true, FULL, 30);
+        CameraSelector.Candidate beyond = camera("beyond", 20, true, FULL, 60);
+        assertEquals(CameraSelector.score(capped), CameraSelector.score(beyond), 1e-9);
+    }
+
+    @Test
+    public void tiesKeepListOrder() {
+        CameraSelector.Candidate first = camera("0", 5, true, FULL, 30);
+        CameraSelector.Candidate second = camera("2", 5, true, FULL, 30);
+        CameraSelector.Candidate third = camera("3", 5, true, FULL, 30);
+        CameraSelector.Candidate worse = camera("1", 5, true, LIMITED, 30);
+
+        List<CameraSelector.Candidate> ranked = CameraSelector.rank(Arrays.asList(first, worse, second, third));
+        assertEquals(Arrays.asList("0", "2", "3", "1"), ids(ranked));
+    }
+
+    @Test
+    public void selectsTheBestRankedOrFirstListed() {
+        CameraSelector.Candidate plain = camera("0", 0, false, LEGACY, 15);
+        CameraSelector.Candidate better = camera("2", 10, true, FULL, 30);
+        List<CameraSelector.Candidate> candidates = Arrays.asList(plain, better);
+        List<CameraSelector.Candidate> ranked = CameraSelector.rank(candidates);
+
+        assertSame(better, CameraSelector.select(candidates, ranked, true, null, null));
+        assertSame(plain, CameraSelector.select(candidates, ranked, false, null, null));
+    }
+
+    @Test
+    public void requestedIdsOverrideTheRanking() {
+        CameraSelector.Candidate logical = camera("0", 5, true, FULL, 30);
+        CameraSelector.Candidate tele = new CameraSelector.Candidate("0", "3", 1, true, FULL, 30);
+        CameraSelector.Candidate macro = new CameraSelector.Candidate("0", "4", 10, true, FULL, 30);
+        CameraSelector.Candidate other = camera("2", 0, false, LEGACY, 30);
+        List<CameraSelector.Candidate> candidates = Arrays.asList(logical, tele, macro, other);
+        List<CameraSelector.Candidate> ranked = CameraSelector.rank(candidates);
+        assertSame(macro, ranked.get(0));
+
+        assertSame(other, CameraSelector.select(candidates, ranked, true, "2", null));
+        assertSame(logical, CameraSelector.select(candidates, ranked, true, "0", null));
+        assertSame(tele, CameraSelector.select(candidates, ranked, true, "0", "3"));
+        // the override applies whether or not scoring is on
+        assertSame(tele, CameraSelector.select(candidates, ranked, false, "0", "3"));
+    }
+
+    @Test
+    public void unknownIdsFallBackToTheRanking() {
+        CameraSelector.Candidate logical = camera("0", 5, true, FULL, 30);
+        CameraSelector.Candidate macro = new CameraSelector.Candidate("0", "4", 10, true, FULL, 30);
+        List<CameraSelector.Candidate> candidates = Arrays.asList(logical, macro);
+        List<CameraSelector.Candidate> ranked = CameraSelector.rank(candidates);
+
+        assertNull(CameraSelector.find(ranked, "0", "9"));
+        assertSame(macro, CameraSelector.select(candidates, ranked, true, "0", "9"));
+        assertSame(macro, CameraSelector.select(candidates, ranked, true, "7", null));
+        assertSame(logical, CameraSelector.select(candidates, ranked, false, "7", null));
+    }
+
+    @Test
+    public void noCandidatesSelectsNothing() {
+        List<CameraSelector.Candidate> none = Arrays.asList();
+        assertNull(CameraSelector.select(none, CameraSelector.rank(none), true, null, null));
+        assertTrue(CameraSelector.rank(none).isEmpty());
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.os.PowerManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class PowerSchedulerTest {
+    private static final long STEP_UP_MILLIS = 30000;
+
+    private static class StandInStatus implements PowerScheduler.StatusProvider {
+        int thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+        boolean powerSave;
+
+        @Override
+        public int getThermalStatus() {
+            return thermalStatus;
+        }
+
+        @Override
+        public boolean isPowerSaveMode() {
+            return powerSave;
+        }
+
+        @Override
+        public void start(Runnable onChange) {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    private StandInStatus status;
+    private List<Integer> levels;
+    private PowerScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        status = new StandInStatus();
+        levels = new ArrayList<>();
+        scheduler = new PowerScheduler(status, STEP_UP_MILLIS, new PowerScheduler.Listener() {
+            @Override
+            public void onLevelChanged(int level, int thermalStatus, boolean powerSave) {
+                levels.add(level);
+            }
+        });
+        scheduler.evaluate(0);
+    }
+
+    @Test
+    public void staysNormalWhenClear() {
+        scheduler.evaluate(100000);
+        assertEquals(PowerScheduler.LEVEL_NORMAL, scheduler.getLevel());
+        assertEquals(0, levels.size());
+    }
+
+    @Test
+    public void stepsDownStraightAway() {
+        status.thermalStatus = PowerManager.THERMAL_STATUS_CRITICAL;
+        scheduler.evaluate(1000);
+
+        // no stop at the levels in between
+        assertEquals(PowerScheduler.LEVEL_MINIMAL, scheduler.getLevel());
+        assertEquals(Arrays.asList(PowerScheduler.LEVEL_MINIMAL), levels);
+    }
+
+    @Test
+    public void stepsUpOneLevelPerStepUpMillis() {
+        status.thermalStatus = PowerManager.THERMAL_STATUS_CRITICAL;
+        scheduler.evaluate(1000);
+        status.thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+
+        scheduler.evaluate(2000);
+        scheduler.evaluate(1000 + STEP_UP_MILLIS - 1);
+        assertEquals(PowerScheduler.LEVEL_MINIMAL, scheduler.getLevel());
+
+        scheduler.evaluate(1000 + STEP_UP_MILLIS);
+        assertEquals(PowerScheduler.LEVEL_LOW, scheduler.getLevel());
+        // the wait restarts at each step
+        scheduler.evaluate(1000 + 2 * STEP_UP_MILLIS - 1);
+        assertEquals(PowerScheduler.LEVEL_LOW, scheduler.getLevel());
+        scheduler.evaluate(1000 + 2 * STEP_UP_MILLIS);
+        assertEquals(PowerScheduler.LEVEL_REDUCED, scheduler.getLevel());
+        scheduler.evaluate(1000 + 3 * STEP_UP_MILLIS);
+        assertEquals(PowerScheduler.LEVEL_NORMAL, scheduler.getLevel());
+
+        assertEquals(Arrays.asList(PowerScheduler.LEVEL_MINIMAL, PowerScheduler.LEVEL_LOW,
+            PowerScheduler.LEVEL_REDUCED, PowerScheduler.LEVEL_NORMAL), levels);
+    }
+
+    @Test
+    public void waitStartsOnceConditionsClear() {
+        status.thermalStatus = PowerManager.THERMAL_STATUS_SEVERE;
+        scheduler.evaluate(1000);
+        // still hot well past stepUpMillis
+        scheduler.evaluate(1000 + 2 * STEP_UP_MILLIS);
+        assertEquals(PowerScheduler.LEVEL_LOW, scheduler.getLevel());
+
+        status.thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+        scheduler.evaluate(1000 + 2 * STEP_UP_MILLIS + 1000);
+        assertEquals(PowerScheduler.LEVEL_LOW, scheduler.getLevel());
+        scheduler.evaluate(1000 + 3 * STEP_UP_MILLIS);
+        assertEquals(PowerScheduler.LEVEL_REDUCED, scheduler.getLevel());
+    }
+
+    @Test
+    public void stepsUpOnlyAsFarAsConditionsAllow() {
+        status.thermalStatus = PowerManager.THERMAL_STATUS_CRITICAL;
+        scheduler.evaluate(1000);
+        status.thermalStatus = PowerManager.THERMAL_STATUS_MODERATE;
+
+        for (int i = 1; i <= 5; ++i) {
+            scheduler.evaluate(1000 + i * STEP_UP_MILLIS);
+        }
+        assertEquals(PowerScheduler.LEVEL_REDUCED, scheduler.getLevel());
+    }
+
+    @Test
+    public void batterySaverReduces() {
+        status.powerSave = true;
+        scheduler.evaluate(1000);
+        assertEquals(PowerScheduler.LEVEL_REDUCED, scheduler.getLevel());
+        assertEquals(true, scheduler.isPowerSave());
+
+        // heat still counts on top of it
+        status.thermalStatus = PowerManager.THERMAL_STATUS_SEVERE;
+        scheduler.evaluate(2000);
+        assertEquals(PowerScheduler.LEVEL_LOW, scheduler.getLevel());
+
+        status.thermalStatus = PowerManager.THERMAL_STATUS_NONE;
+        scheduler.evaluate(2000 + STEP_UP_MILLIS);
+        assertEquals(PowerScheduler.LEVEL_REDUCED, scheduler.getLevel());
+        // battery saver alone holds it at reduced
+        scheduler.evaluate(2000 + 3 * STEP_UP_MILLIS);
+        assertEquals(PowerScheduler.LEVEL_REDUCED, scheduler.getLevel());
+
+        status.powerSave = false;
+        scheduler.evaluate(2000 + 4 * STEP_UP_MILLIS);
+        assertEquals(PowerScheduler.LEVEL_NORMAL, scheduler.getLevel());
+    }
+
+    @Test
+    public void targetLevels() {
+        assertEquals(PowerScheduler.LEVEL_NORMAL, PowerScheduler.targetLevel(PowerManager.THERMAL_STATUS_LIGHT, false));
+        assertEquals(PowerScheduler.LEVEL_REDUCED, PowerScheduler.targetLevel(PowerManager.THERMAL_STATUS_MODERATE, false));
+        assertEquals(PowerScheduler.LEVEL_LOW, PowerScheduler.targetLevel(PowerManager.THERMAL_STATUS_SEVERE, false));
+        assertEquals(PowerScheduler.LEVEL_MINIMAL, PowerScheduler.targetLevel(PowerManager.THERMAL_STATUS_CRITICAL, false));
+        assertEquals(PowerScheduler.LEVEL_MINIMAL, PowerScheduler.targetLevel(PowerManager.THERMAL_STATUS_SHUTDOWN, false));
+        assertEquals(PowerScheduler.LEVEL_REDUCED, PowerScheduler.targetLevel(PowerManager.THERMAL_STATUS_NONE, true));
+        assertEquals(PowerScheduler.LEVEL_MINIMAL, PowerScheduler.targetLevel(PowerManager.THERMAL_STATUS_EMERGENCY, true));
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+
+import com.google.android.gms.vision.Frame;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Raw image buffers are in the sensor's own orientation and aren't mirrored for front
+ * facing lenses, so lens facing isn't an input anywhere here. What differs between
+ * sensor orientations is the frame rotation the detector is given, which with the
+ * display at ROTATION_0 is the sensor orientation itself.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SensorCoordinateMapperTest {
+    private static final int IMAGE_WIDTH = 1280;
+    private static final int IMAGE_HEIGHT = 720;
+    // a 4:3 active array, so a 16:9 stream is letterboxed inside it
+    private static final Rect ACTIVE_ARRAY = new Rect(0, 0, 4032, 3024);
+
+    /**
+     * Raw bounds of the corners of an upright rect as the detector reports it, mapped
+     * the way the focus hint maps results.
+     */
+    private static Rect toRawBounds(Rect upright, int rotation) {
+        Point[] corners = {
+            new Point(upright.left, upright.top),
+            new Point(upright.right, upright.top),
+            new Point(upright.right, upright.bottom),
+            new Point(upright.left, upright.bottom),
+        };
+        Rect bounds = null;
+        for (Point corner : corners) {
+            FrameCoordinates.toRaw(corner, rotation, IMAGE_WIDTH, IMAGE_HEIGHT);
+            if (bounds == null) {
+                bounds = new Rect(corner.x, corner.y, corner.x, corner.y);
+            } else {
+                bounds.union(corner.x, corner.y);
+            }
+        }
+        return bounds;
+    }
+
+    private static Rect toSensor(Rect raw, Rect cropRegion) {
+        Rect out = new Rect();
+        SensorCoordinateMapper.toSensor(raw, IMAGE_WIDTH, IMAGE_HEIGHT, cropRegion, out);
+        return out;
+    }
+
+    @Test
+    public void sensorOrientation0() {
+        // upright is raw
+        Rect raw = toRawBounds(new Rect(100, 40, 300, 200), Frame.ROTATION_0);
+        assertEquals(new Rect(100, 40, 300, 200), raw);
+        // scale 3.15 and 378 rows of letterbox above the stream
+        assertEquals(new Rect(315, 504, 945, 1008), toSensor(raw, ACTIVE_ARRAY));
+    }
+
+    @Test
+    public void sensorOrientation90() {
+        // the upright frame is 720 wide; its x runs down the raw rows from the bottom
+        Rect raw = toRawBounds(new Rect(520, 100, 680, 300), Frame.ROTATION_90);
+        assertEquals(new Rect(100, 40, 300, 200), raw);
+        assertEquals(new Rect(315, 504, 945, 1008), toSensor(raw, ACTIVE_ARRAY));
+
+        // near the upright top left is near the raw bottom left
+        raw = toRawBounds(new Rect(0, 0, 100, 100), Frame.ROTATION_90);
+        assertEquals(new Rect(0, 620, 100, 720), raw);
+        assertEquals(new Rect(0, 2331, 315, 2646), toSensor(raw, ACTIVE_ARRAY));
+    }
+
+    @Test
+    public void sensorOrientation180() {
+        Rect raw = toRawBounds(new Rect(980, 520, 1180, 680), Frame.ROTATION_180);
+        assertEquals(new Rect(100, 40, 300, 200), raw);
+        assertEquals(new Rect(315, 504, 945, 1008), toSensor(raw, ACTIVE_ARRAY));
+
+        raw = toRawBounds(new Rect(0, 0, 100, 100), Frame.ROTATION_180);
+        assertEquals(new Rect(1180, 620, 1280, 720), raw);
+        assertEquals(new Rect(3717, 2331, 4032, 2646), toSensor(raw, ACTIVE_ARRAY));
+    }
+
+    @Test
+    public void sensorOrientation270() {
+        Rect raw = toRawBounds(new Rect(40, 980, 200, 1180), Frame.ROTATION_270);
+        assertEquals(new Rect(100, 40, 300, 200), raw);
+        assertEquals(new Rect(315, 504, 945, 1008), toSensor(raw, ACTIVE_ARRAY));
+
+        // near the upright top left is near the raw top right
+        raw = toRawBounds(new Rect(0, 0, 100, 100), Frame.ROTATION_270);
+        assertEquals(new Rect(1180, 0, 1280, 100), raw);
+        assertEquals(new Rect(3717, 378, 4032, 693), toSensor(raw, ACTIVE_ARRAY));
+    }
+
+    @Test
+    public void wholeImageReachesTheVisibleEdges() {
+        assertEquals(new Rect(0, 378, 4032, 2646), toSensor(new Rect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT), ACTIVE_ARRAY));
+    }
+
+    @Test
+    public void zoomedCropRegionIsOffset() {
+        // 2x zoom centred on the active array
+        Rect crop = new Rect(1008, 756, 3024, 2268);
+        // visible height 1134 centred in 1512, scale 1.575
+        assertEquals(new Rect(1008, 945, 2016, 1512), toSensor(new Rect(0, 0, 640, 360), crop));
+    }
+
+    @Test
+    public void tallerStreamIsPillarboxed() {
+        Rect sensor = new Rect();
+        SensorCoordinateMapper.toSensor(new Rect(0, 0, 480, 480), 480, 480, ACTIVE_ARRAY, sensor);
+        // square stream in a 4:3 array, 504 columns cut off each side
+        assertEquals(new Rect(504, 0, 3528, 3024), sensor);
+    }
+
+    @Test
+    public void regionIsClippedToTheCrop() {
+        assertEquals(new Rect(0, 0, 315, 693), toSensor(new Rect(-200, -200, 100, 100), ACTIVE_ARRAY));
+        assertTrue(toSensor(new Rect(5000, 5000, 6000, 6000), ACTIVE_ARRAY).isEmpty());
+    }
+}
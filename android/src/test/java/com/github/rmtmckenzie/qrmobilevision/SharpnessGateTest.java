@@ -0,0 +1,84 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SharpnessGateTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    // padded like a real camera plane
+    private static final int ROW_STRIDE = 704;
+
+    /** 8px checkerboard, dark 30 and light 220. */
+    private static byte[] edges() {
+        byte[] luma = new byte[ROW_STRIDE * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean light = ((x / 8) + (y / 8)) % 2 == 0;
+                luma[y * ROW_STRIDE + x] = (byte) (light ? 220 : 30);
+            }
+        }
+        return luma;
+    }
+
+    /** Horizontal box blur over length pixels, like a camera panning sideways. */
+    private static byte[] motionBlur(byte[] luma, int length) {
+        byte[] out = new byte[luma.length];
+        for (int y = 0; y < HEIGHT; y++) {
+            int row = y * ROW_STRIDE;
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int k = x - length / 2; k < x - length / 2 + length; k++) {
+                    if (k >= 0 && k < WIDTH) {
+                        sum += luma[row + k] & 0xFF;
+                        count++;
+                    }
+                }
+                out[row + x] = (byte) (sum / count);
+            }
+        }
+        return out;
+    }
+
+    private static double measure(byte[] luma) {
+        return SharpnessGate.measure(luma, ROW_STRIDE, 1, WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void blurLowersTheScore() {
+        byte[] sharp = edges();
+        double sharpScore = measure(sharp);
+        double slightScore = measure(motionBlur(sharp, 3));
+        double heavyScore = measure(motionBlur(sharp, 12));
+
+        assertTrue("sharp " + sharpScore + " vs slight " + slightScore, slightScore < sharpScore);
+        assertTrue("slight " + slightScore + " vs heavy " + heavyScore, heavyScore < slightScore);
+        assertTrue("heavy blur should lose most detail: " + heavyScore, heavyScore < sharpScore * 0.35);
+    }
+
+    @Test
+    public void flatFrameScoresNothing() {
+        byte[] flat = new byte[ROW_STRIDE * HEIGHT];
+        assertTrue(measure(flat) == 0);
+    }
+
+    @Test
+    public void acceptsSharpAndRejectsBlurred() {
+        SharpnessGate gate = new SharpnessGate(20, 0.35);
+        byte[] sharp = edges();
+
+        assertTrue(gate.accept(measure(sharp)));
+        assertFalse(gate.accept(measure(motionBlur(sharp, 12))));
+        // the peak is remembered, so a sharp frame is accepted again straight after
+        assertTrue(gate.accept(measure(sharp)));
+    }
+
+    @Test
+    public void floorRejectsLowDetailEvenWithoutAPeak() {
+        SharpnessGate gate = new SharpnessGate(20, 0.35);
+        assertFalse(gate.accept(5));
+    }
+}
@@ -5,6 +5,12 @@ class Barcode {
   final List<Offset>? _cornerPoints;
   final Rect? boundingBox;
 
+  /// The corner points in the preview as shown upright, from 0,0 at its top left
+  /// to 1,1 at its bottom right, mirrored for front facing cameras. Multiply by
+  /// the preview's size to draw over it. Points outside the preview fall outside
+  /// that range. Android only, null elsewhere.
+  final List<Offset>? previewPoints;
+
   Barcode(Map<dynamic, dynamic> _data)
       : boundingBox = _data['left'] != null
             ? Rect.fromLTWH(
@@ -18,6 +24,14 @@ class Barcode {
         _cornerPoints = _data['points'] == null
             ? null
             : _data['points']
+                .map<Offset>((dynamic item) => Offset(
+                      item[0],
+                      item[1],
+                    ))
+                .toList(),
+        previewPoints = _data['previewPoints'] == null
+            ? null
+            : _data['previewPoints']
                 .map<Offset>((dynamic item) => Offset(
                       item[0],
                       item[1],
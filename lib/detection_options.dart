@@ -0,0 +1,350 @@
+/// Built-in stages that condition each frame before it is decoded.
+enum FrameStage {
+  /// Stretch the range between the darkest and brightest [DetectionOptions.stretchClip]
+  /// of pixels over the full range, for washed out or dark prints.
+  contrastStretch,
+
+  /// Spread the grey levels evenly, for low contrast thermal labels.
+  equalizeHistogram,
+
+  /// Turn each pixel black or white against its local mean, for glare and
+  /// shadows falling across glossy labels.
+  binarize,
+
+  /// Swap dark and light, for white on black codes.
+  invert,
+}
+
+/// Optional tuning of the native detection pipeline.
+///
+/// Options not supported on a platform are ignored there.
+class DetectionOptions {
+  /// Stop analysing frames after the first result. The preview stays live;
+  /// call [QrMobileVision.resumeDetection] to scan again. Android only.
+  final bool singleShot;
+
+  /// Send results to dart. Turn off when only the host app's native
+  /// `QrResultListener`s, registered with the Android plugin's
+  /// `addResultListener`, need them. On by default. Android only.
+  final bool dartResults;
+
+  /// Focus and meter on a code that was just read but stopped decoding, so it
+  /// comes back into focus faster. Android only.
+  final bool focusOnCodes;
+
+  /// Use the camera best suited to reading codes (close focus, auto focus,
+  /// frame rate, hardware level) rather than the first one facing the right
+  /// way. [QrMobileVision.getCameras] lists the ranking. Android only.
+  final bool scoreCameras;
+
+  /// Also consider the physical cameras behind a logical multi-camera.
+  final bool includePhysicalCameras;
+
+  /// Use this camera (and physical camera) instead of the selection, as
+  /// listed by [QrMobileVision.getCameras].
+  final String? cameraId;
+  final String? physicalCameraId;
+
+  /// Watch for the camera going quiet for [frameTimeoutMillis], and recover by
+  /// recreating the capture session, then by reopening the camera, waiting
+  /// from [recoveryBackoffMillis] up to [maxRecoveryBackoffMillis] between
+  /// attempts. Events go to [QrMobileVision.setRecoveryHandler]. Android only.
+  final bool watchdog;
+  final int? frameTimeoutMillis;
+  final int? recoveryBackoffMillis;
+  final int? maxRecoveryBackoffMillis;
+
+  /// Step detection down as the device heats up or battery saver comes on:
+  /// fewer decodes per second, no tiles or high resolution captures, then half
+  /// resolution decoding. Steps back up one level at a time once conditions
+  /// have been clear for [powerStepUpMillis]. Changes go to
+  /// [QrMobileVision.setPowerLevelHandler]. Android only.
+  final bool powerAware;
+  final int? powerStepUpMillis;
+
+  /// Once nothing has been decoded for [idleAfterMillis], drop to a slow
+  /// frame rate and half resolution decoding. Go back to full rate as soon as
+  /// the scene moves (blocks of the frame changing by more than
+  /// [idleMotionThreshold] luma levels) or a code shows up. Time spent in each
+  /// state is in [QrMobileVision.getStats]. Android only.
+  final bool idleMode;
+  final int? idleAfterMillis;
+  final int? idleMotionThreshold;
+
+  /// Keep the last this many per-frame phase spans (acquire, copy, convert,
+  /// preprocess, detect, marshal, send) for [QrMobileVision.dumpTrace]. The
+  /// phases are marked as systrace/perfetto sections either way. Android only.
+  final int? traceSpans;
+
+  /// Decode each frame's luma straight from the camera's buffer instead of
+  /// copying and converting it first. Only used when none of [autoLight],
+  /// [rejectBlurryFrames], [preprocess], [trackRoi], [tiledDetection],
+  /// [escalate], [highResFallback] or [scanlineFastPath] are in effect, and
+  /// on cameras whose luma rows aren't padded; otherwise frames are copied
+  /// and the stats name the options in the way. Android only.
+  final bool zeroCopy;
+
+  /// Bytes the native frame buffers may take: the camera's image reader, the
+  /// copies frames are decoded from and the conversion buffer. Reader images,
+  /// then the second frame copy, then decode resolution are given up to fit.
+  /// Buffers also shrink when the system reports memory pressure. Android only.
+  final int? memoryBudgetBytes;
+
+  /// Zoom in on codes smaller than [autoZoomTargetSize] of the frame, and go
+  /// back to the set zoom factor once none have been found for
+  /// [autoZoomResetMillis]. Android only.
+  final bool autoZoom;
+
+  /// Fraction of the frame's width or height codes are zoomed to fill.
+  final double? autoZoomTargetSize;
+
+  /// Fraction of the way towards the target zoom moved per frame with results.
+  final double? autoZoomSmoothing;
+  final int? autoZoomResetMillis;
+
+  /// Raise exposure compensation, then turn on the torch, while the scene stays
+  /// darker than [darkLuma]; step back down once it is brighter than
+  /// [brightLuma], or [torchOffLuma] with the torch on. Changes are sent to the
+  /// handler set with [QrMobileVision.setLightingHandler]. Android only.
+  final bool autoLight;
+
+  /// Mean luma (0-255) thresholds for stepping up and down.
+  final int? darkLuma;
+  final int? brightLuma;
+  final int? torchOffLuma;
+
+  /// Consecutive frames a condition must hold before stepping.
+  final int? lightHoldFrames;
+
+  /// Capture and decode a single full resolution frame after [highResMisses]
+  /// frames in a row that are full of fine detail but decode to nothing, such
+  /// as dense PDF417 or DataMatrix on small labels. Needs a FULL or LEVEL_3
+  /// camera. Android only.
+  final bool highResFallback;
+  final int? highResMisses;
+
+  /// Variance of the Laplacian a frame needs to count as detailed.
+  final double? highResMinDetail;
+
+  /// Minimum time between high resolution captures.
+  final int? highResCooldownMillis;
+
+  /// Stages run in order over every frame before it is decoded. Time spent in
+  /// each is reported in the stats. Android only.
+  final List<FrameStage>? preprocess;
+
+  /// Fraction of pixels at each end of the range ignored by
+  /// [FrameStage.contrastStretch].
+  final double? stretchClip;
+
+  /// Side in pixels of the blocks [FrameStage.binarize] takes local means over.
+  final int? binarizeBlockSize;
+
+  /// Skip decoding frames while the scene is unchanged since the last frame
+  /// that decoded to nothing. Android only.
+  final bool skipStaticFrames;
+
+  /// Difference in mean luma (0-255) a thumbnail block needs to count as changed.
+  final int? staticFrameThreshold;
+
+  /// Number of consecutive skipped frames after which a frame is decoded anyway.
+  final int? staticFrameRefreshInterval;
+
+  /// Drop motion-blurred frames before they are decoded. Android only.
+  final bool rejectBlurryFrames;
+
+  /// Sharpness (variance of the Laplacian) below which a frame is always dropped.
+  final double? minSharpness;
+
+  /// Fraction of the recent peak sharpness a frame needs to be decoded.
+  final double? relativeSharpness;
+
+  /// Once a code is found, decode only a crop around where it is expected in
+  /// the following frames. Android only.
+  final bool trackRoi;
+
+  /// Margin around the tracked codes, as a fraction of their larger side.
+  final double? roiExpansion;
+
+  /// A full frame is decoded at least once every this many frames while tracking.
+  final int? roiFullFrameInterval;
+
+  /// Split each frame into a grid of overlapping tiles decoded in parallel, for
+  /// scenes with many small codes. Android only.
+  final bool tiledDetection;
+
+  /// Number of tile columns and rows.
+  final int? tileColumns;
+  final int? tileRows;
+
+  /// Fraction of a tile's size by which it extends into its neighbours.
+  final double? tileOverlap;
+
+  /// Decode a downscaled frame for the most recently seen format first, and
+  /// only fall back to a full resolution pass with every format once that has
+  /// missed for [escalationMisses] frames in a row. Android only.
+  final bool escalate;
+
+  /// Factor each side of the frame is divided by for the cheap pass.
+  final int? escalationScale;
+
+  /// Consecutive cheap misses after which a full resolution pass runs.
+  final int? escalationMisses;
+
+  /// Narrow the formats decoded to those seen in this session once
+  /// [narrowingWarmup] frames have had results. Every
+  /// [narrowingProbeInterval]th frame is still decoded for all formats, and
+  /// anything new found there is added back. Android only.
+  final bool narrowFormats;
+  final int? narrowingWarmup;
+  final int? narrowingProbeInterval;
+
+  /// Share of the hits the narrowed formats must account for (0-1).
+  final double? narrowingCoverage;
+
+  /// When [formats] only contains linear (1D) formats, decode a few lines
+  /// sampled across the frame instead of the whole frame. The whole frame is
+  /// still decoded every [scanlineFullFrameInterval] frames. Android only.
+  final bool scanlineFastPath;
+  final int? scanlineFullFrameInterval;
+
+  /// Accumulate unique codes natively instead of sending every result. Only
+  /// changed entries are sent, to the handler set with
+  /// [QrMobileVision.setInventoryHandler]: new codes straight away, count
+  /// updates at most every [inventoryDeltaIntervalMillis]. Android only.
+  final bool inventory;
+  final int? inventoryDeltaIntervalMillis;
+
+  const DetectionOptions({
+    this.singleShot = false,
+    this.dartResults = true,
+    this.focusOnCodes = false,
+    this.scoreCameras = false,
+    this.includePhysicalCameras = false,
+    this.cameraId,
+    this.physicalCameraId,
+    this.watchdog = false,
+    this.frameTimeoutMillis,
+    this.recoveryBackoffMillis,
+    this.maxRecoveryBackoffMillis,
+    this.powerAware = false,
+    this.powerStepUpMillis,
+    this.idleMode = false,
+    this.idleAfterMillis,
+    this.idleMotionThreshold,
+    this.traceSpans,
+    this.zeroCopy = false,
+    this.memoryBudgetBytes,
+    this.autoZoom = false,
+    this.autoZoomTargetSize,
+    this.autoZoomSmoothing,
+    this.autoZoomResetMillis,
+    this.autoLight = false,
+    this.darkLuma,
+    this.brightLuma,
+    this.torchOffLuma,
+    this.lightHoldFrames,
+    this.highResFallback = false,
+    this.highResMisses,
+    this.highResMinDetail,
+    this.highResCooldownMillis,
+    this.preprocess,
+    this.stretchClip,
+    this.binarizeBlockSize,
+    this.skipStaticFrames = false,
+    this.staticFrameThreshold,
+    this.staticFrameRefreshInterval,
+    this.rejectBlurryFrames = false,
+    this.minSharpness,
+    this.relativeSharpness,
+    this.trackRoi = false,
+    this.roiExpansion,
+    this.roiFullFrameInterval,
+    this.tiledDetection = false,
+    this.tileColumns,
+    this.tileRows,
+    this.tileOverlap,
+    this.escalate = false,
+    this.escalationScale,
+    this.escalationMisses,
+    this.narrowFormats = false,
+    this.narrowingWarmup,
+    this.narrowingProbeInterval,
+    this.narrowingCoverage,
+    this.scanlineFastPath = true,
+    this.scanlineFullFrameInterval,
+    this.inventory = false,
+    this.inventoryDeltaIntervalMillis,
+  });
+
+  Map<String, dynamic> toMap() {
+    final Map<String, dynamic> map = {
+      'singleShot': singleShot,
+      'dartResults': dartResults,
+      'focusOnCodes': focusOnCodes,
+      'scoreCameras': scoreCameras,
+      'includePhysicalCameras': includePhysicalCameras,
+      'watchdog': watchdog,
+      'powerAware': powerAware,
+      'idleMode': idleMode,
+      'zeroCopy': zeroCopy,
+      'autoZoom': autoZoom,
+      'autoLight': autoLight,
+      'highResFallback': highResFallback,
+      'skipStaticFrames': skipStaticFrames,
+      'rejectBlurryFrames': rejectBlurryFrames,
+      'trackRoi': trackRoi,
+      'tiledDetection': tiledDetection,
+      'escalate': escalate,
+      'narrowFormats': narrowFormats,
+      'scanlineFastPath': scanlineFastPath,
+      'inventory': inventory,
+    };
+    _putIfSet(map, 'cameraId', cameraId);
+    _putIfSet(map, 'physicalCameraId', physicalCameraId);
+    _putIfSet(map, 'frameTimeoutMillis', frameTimeoutMillis);
+    _putIfSet(map, 'recoveryBackoffMillis', recoveryBackoffMillis);
+    _putIfSet(map, 'maxRecoveryBackoffMillis', maxRecoveryBackoffMillis);
+    _putIfSet(map, 'powerStepUpMillis', powerStepUpMillis);
+    _putIfSet(map, 'idleAfterMillis', idleAfterMillis);
+    _putIfSet(map, 'idleMotionThreshold', idleMotionThreshold);
+    _putIfSet(map, 'traceSpans', traceSpans);
+    _putIfSet(map, 'memoryBudgetBytes', memoryBudgetBytes);
+    _putIfSet(map, 'autoZoomTargetSize', autoZoomTargetSize);
+    _putIfSet(map, 'autoZoomSmoothing', autoZoomSmoothing);
+    _putIfSet(map, 'autoZoomResetMillis', autoZoomResetMillis);
+    _putIfSet(map, 'darkLuma', darkLuma);
+    _putIfSet(map, 'brightLuma', brightLuma);
+    _putIfSet(map, 'torchOffLuma', torchOffLuma);
+    _putIfSet(map, 'lightHoldFrames', lightHoldFrames);
+    _putIfSet(map, 'highResMisses', highResMisses);
+    _putIfSet(map, 'highResMinDetail', highResMinDetail);
+    _putIfSet(map, 'highResCooldownMillis', highResCooldownMillis);
+    _putIfSet(map, 'preprocess', preprocess?.map((stage) => stage.toString().split('.').last).toList());
+    _putIfSet(map, 'stretchClip', stretchClip);
+    _putIfSet(map, 'binarizeBlockSize', binarizeBlockSize);
+    _putIfSet(map, 'staticFrameThreshold', staticFrameThreshold);
+    _putIfSet(map, 'staticFrameRefreshInterval', staticFrameRefreshInterval);
+    _putIfSet(map, 'minSharpness', minSharpness);
+    _putIfSet(map, 'relativeSharpness', relativeSharpness);
+    _putIfSet(map, 'roiExpansion', roiExpansion);
+    _putIfSet(map, 'roiFullFrameInterval', roiFullFrameInterval);
+    _putIfSet(map, 'tileColumns', tileColumns);
+    _putIfSet(map, 'tileRows', tileRows);
+    _putIfSet(map, 'tileOverlap', tileOverlap);
+    _putIfSet(map, 'escalationScale', escalationScale);
+    _putIfSet(map, 'escalationMisses', escalationMisses);
+    _putIfSet(map, 'narrowingWarmup', narrowingWarmup);
+    _putIfSet(map, 'narrowingProbeInterval', narrowingProbeInterval);
+    _putIfSet(map, 'narrowingCoverage', narrowingCoverage);
+    _putIfSet(map, 'scanlineFullFrameInterval', scanlineFullFrameInterval);
+    _putIfSet(map, 'inventoryDeltaIntervalMillis', inventoryDeltaIntervalMillis);
+    return map;
+  }
+
+  static void _putIfSet(Map<String, dynamic> map, String key, Object? value) {
+    if (value != null) {
+      map[key] = value;
+    }
+  }
+}
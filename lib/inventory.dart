@@ -0,0 +1,30 @@
+/// A unique code accumulated in inventory mode.
+class InventoryEntry {
+  final String rawValue;
+
+  /// Number of frames the code has been decoded in.
+  final int count;
+  final DateTime firstSeen;
+  final DateTime lastSeen;
+
+  InventoryEntry(Map<dynamic, dynamic> _data)
+      : rawValue = _data['rawValue'],
+        count = _data['count'],
+        firstSeen = DateTime.fromMillisecondsSinceEpoch(_data['firstSeen']),
+        lastSeen = DateTime.fromMillisecondsSinceEpoch(_data['lastSeen']);
+}
+
+/// A page of the inventory, in the order codes were first seen.
+class InventoryPage {
+  /// Number of unique codes in the whole inventory.
+  final int total;
+  final int offset;
+  final List<InventoryEntry> entries;
+
+  InventoryPage(Map<dynamic, dynamic> _data)
+      : total = _data['total'],
+        offset = _data['offset'],
+        entries = (_data['entries'] as List)
+            .map((entry) => InventoryEntry(entry))
+            .toList();
+}
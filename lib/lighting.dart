@@ -0,0 +1,20 @@
+/// How far low light control has gone to brighten the image.
+enum LightingStage { normal, exposure, torch }
+
+/// Sent when low light control changes stage.
+class LightingEvent {
+  final LightingStage stage;
+
+  /// Mean luma (0-255) of the frame that triggered the change.
+  final int meanLuma;
+
+  /// Luma the brightest tenth of that frame reaches.
+  final int brightLuma;
+
+  LightingEvent(Map<dynamic, dynamic> _data)
+      : stage = LightingStage.values.firstWhere(
+            (stage) => stage.toString() == 'LightingStage.${_data['stage']}',
+            orElse: () => LightingStage.normal),
+        meanLuma = _data['meanLuma'],
+        brightLuma = _data['brightLuma'];
+}
@@ -0,0 +1,29 @@
+/// How far detection has been stepped down to save power.
+enum PowerLevel { normal, reduced, low, minimal }
+
+/// Sent when power aware scheduling changes level.
+class PowerLevelEvent {
+  final PowerLevel level;
+
+  /// The device's thermal status, from 0 (none) to 6 (shutdown). Always 0
+  /// before Android 10.
+  final int thermalStatus;
+
+  /// Whether battery saver is on.
+  final bool powerSave;
+
+  /// Decodes per second aimed for at this level, or 0 for no limit.
+  final int targetFps;
+
+  /// How much each side of a frame is shrunk before decoding.
+  final int decodeScale;
+
+  PowerLevelEvent(Map<dynamic, dynamic> _data)
+      : level = PowerLevel.values.firstWhere(
+            (level) => level.toString() == 'PowerLevel.${_data['level']}',
+            orElse: () => PowerLevel.normal),
+        thermalStatus = _data['thermalStatus'],
+        powerSave = _data['powerSave'],
+        targetFps = _data['targetFps'],
+        decodeScale = _data['decodeScale'];
+}
@@ -1,10 +1,12 @@
 import 'dart:async';
 import 'dart:developer';
 import 'dart:math' as math;
+import 'package:flutter/foundation.dart' show listEquals;
 import 'package:flutter/material.dart';
 import 'package:native_device_orientation/native_device_orientation.dart';
 import 'package:qr_mobile_vision/barcode.dart';
 import 'package:qr_mobile_vision/camera_config.dart';
+import 'package:qr_mobile_vision/detection_options.dart';
 import 'package:qr_mobile_vision/qr_mobile_vision.dart';
 
 final WidgetBuilder _defaultNotStartedBuilder =
@@ -31,6 +33,8 @@ class QrCamera extends StatefulWidget {
     this.scaleResolution = 1,
     ErrorCallback? onError,
     this.formats,
+    this.detectionOptions,
+    this.roi,
     this.customPainter,
     bool? isFlipCameraPreview,
   })  : notStartedBuilder = notStartedBuilder ?? _defaultNotStartedBuilder,
@@ -48,6 +52,11 @@ class QrCamera extends StatefulWidget {
   final int scaleResolution;
   final ErrorCallback onError;
   final List<BarcodeFormats>? formats;
+  final DetectionOptions? detectionOptions;
+
+  /// Only report codes centred in this part of the preview, from 0,0 at its
+  /// top left to 1,1 at its bottom right. Android only.
+  final Rect? roi;
   final CustomPainter? customPainter;
   final CameraLensDirection? cameraLensDirection;
   final CameraZoomFactor? cameraZoomFactor;
@@ -71,13 +80,32 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
     super.dispose();
   }
 
+  @override
+  void didUpdateWidget(QrCamera oldWidget) {
+    super.didUpdateWidget(oldWidget);
+    // swapped in natively, so the camera keeps running.
+    final subscriptionId = _subscriptionId;
+    final formatsChanged = !listEquals(oldWidget.formats, widget.formats);
+    final roiChanged = oldWidget.roi != widget.roi;
+    if (subscriptionId != null && (formatsChanged || roiChanged)) {
+      QrMobileVision.updateConfig(
+        subscriptionId: subscriptionId,
+        formats: formatsChanged
+            ? widget.formats ?? [BarcodeFormats.ALL_FORMATS]
+            : null,
+        roi: roiChanged ? widget.roi : null,
+        clearRoi: roiChanged && widget.roi == null,
+      );
+    }
+  }
+
   @override
   void didChangeAppLifecycleState(AppLifecycleState state) {
     if (state == AppLifecycleState.resumed) {
       setState(() => onScreen = true);
     } else {
       if (_asyncInitOnce != null && onScreen) {
-        QrMobileVision.stop();
+        _stopCamera();
       }
       setState(() {
         onScreen = false;
@@ -88,6 +116,21 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
 
   bool onScreen = true;
   Future<PreviewDetails>? _asyncInitOnce;
+  // this widget's share of the camera, which others may be using too
+  int? _subscriptionId;
+
+  Future _stopCamera() async {
+    final init = _asyncInitOnce;
+    int? subscriptionId = _subscriptionId;
+    _subscriptionId = null;
+    if (subscriptionId == null && init != null) {
+      // still starting; wait for the id rather than stopping everyone's camera.
+      try {
+        subscriptionId = (await init).subscriptionId;
+      } catch (_) {}
+    }
+    return QrMobileVision.stop(subscriptionId: subscriptionId);
+  }
 
   Future<PreviewDetails> _asyncInit(
     num width,
@@ -104,7 +147,10 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
       scaleResolution: widget.scaleResolution,
       qrCodeHandler: widget.qrCodeCallback,
       formats: widget.formats,
+      detectionOptions: widget.detectionOptions,
+      roi: widget.roi,
     );
+    _subscriptionId = previewDetails.subscriptionId;
     return previewDetails;
   }
 
@@ -135,7 +181,7 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
   ///  the event that it was paused.
   void restart() {
     (() async {
-      await QrMobileVision.stop();
+      await _stopCamera();
       setState(() {
         _asyncInitOnce = null;
       });
@@ -146,14 +192,14 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
   /// camera.
   void stop() {
     (() async {
-      await QrMobileVision.stop();
+      await _stopCamera();
     })();
   }
 
   @override
   deactivate() {
     super.deactivate();
-    QrMobileVision.stop();
+    _stopCamera();
   }
 
   void updateTextureSize() {
@@ -225,7 +271,8 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
       return previewDetails;
     }
     return PreviewDetails(_textureSize!.width, _textureSize!.height,
-        previewDetails!.sensorOrientation, previewDetails.textureId);
+        previewDetails!.sensorOrientation, previewDetails.textureId,
+        subscriptionId: previewDetails.subscriptionId);
   }
 }
 
@@ -3,6 +3,11 @@ import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
 import 'package:qr_mobile_vision/barcode.dart';
 import 'package:qr_mobile_vision/camera_config.dart';
+import 'package:qr_mobile_vision/detection_options.dart';
+import 'package:qr_mobile_vision/inventory.dart';
+import 'package:qr_mobile_vision/lighting.dart';
+import 'package:qr_mobile_vision/power.dart';
+import 'package:qr_mobile_vision/recovery.dart';
 
 class PreviewDetails {
   final num? width;
@@ -10,12 +15,17 @@ class PreviewDetails {
   final num? sensorOrientation;
   final int? textureId;
 
+  /// Identifies this scanner's share of the camera, for [QrMobileVision.stop].
+  /// Null where the camera can't be shared.
+  final int? subscriptionId;
+
   const PreviewDetails(
     this.width,
     this.height,
     this.sensorOrientation,
-    this.textureId,
-  );
+    this.textureId, {
+    this.subscriptionId,
+  });
 }
 
 enum BarcodeFormats {
@@ -44,7 +54,12 @@ class QrMobileVision {
       const MethodChannel('com.github.rmtmckenzie/qr_mobile_vision');
   static QrChannelReader channelReader = new QrChannelReader(_channel);
 
-  //Set target size before starting
+  /// Start the camera, or on Android, share the one already running: each
+  /// scanner gets the same preview texture, and results matching its own
+  /// [formats] and centred in its [roi]. The size, lens and [detectionOptions]
+  /// of the first still apply while it's shared. [roi] is in the normalized
+  /// coordinates of [Barcode.previewPoints]. Stop with the returned
+  /// [PreviewDetails.subscriptionId] to keep the others running.
   static Future<PreviewDetails> start({
     required int width,
     required int height,
@@ -53,6 +68,8 @@ class QrMobileVision {
     required double cameraZoomFactorValue,
     required QRCodeHandler qrCodeHandler,
     List<BarcodeFormats>? formats = _defaultBarcodeFormats,
+    DetectionOptions? detectionOptions,
+    Rect? roi,
   }) async {
     width = width * scaleResolution;
     height = height * scaleResolution;
@@ -70,7 +87,9 @@ class QrMobileVision {
       'cameraLensFacing': cameraLensDirectionValue,
       'zoomFactor': cameraZoomFactorValue,
       'heartbeatTimeout': 0,
-      'formats': formatStrings
+      'formats': formatStrings,
+      if (roi != null) 'roi': [roi.left, roi.top, roi.right, roi.bottom],
+      ...?detectionOptions?.toMap(),
     });
 
     // invokeMethod returns Map<dynamic,...> in dart 2.0
@@ -80,16 +99,59 @@ class QrMobileVision {
     num? orientation = details["surfaceOrientation"];
     num? surfaceHeight = details["surfaceHeight"];
     num? surfaceWidth = details["surfaceWidth"];
+    int? subscriptionId = details["subscriptionId"];
+    if (subscriptionId != null) {
+      channelReader.addSubscription(subscriptionId, qrCodeHandler);
+    }
 
     return new PreviewDetails(
-        surfaceWidth, surfaceHeight, orientation, textureId);
+        surfaceWidth, surfaceHeight, orientation, textureId,
+        subscriptionId: subscriptionId);
   }
 
-  static Future stop() {
+  /// Stop the scanner with [subscriptionId], closing the camera once no
+  /// others share it, or without one stop everything.
+  static Future stop({int? subscriptionId}) {
+    if (subscriptionId != null) {
+      channelReader.removeSubscription(subscriptionId);
+      return _channel.invokeMethod('stop', {'subscriptionId': subscriptionId})
+          .catchError(print);
+    }
     channelReader.setQrCodeHandler(null);
+    channelReader.clearSubscriptions();
     return _channel.invokeMethod('stop').catchError(print);
   }
 
+  /// Change what a running scanner looks for without restarting the camera:
+  /// its [formats], its [roi] (with [clearRoi] to go back to the whole
+  /// preview), and the [preprocess] stages, which apply to everything sharing
+  /// the camera. Anything left out stays as it is. It takes effect from the
+  /// next frame; `lastConfigSwapMillis` in [getStats] is how long that took.
+  /// [subscriptionId] can be left out while only one scanner is running.
+  /// Returns false if nothing is running. Android only.
+  static Future<bool> updateConfig({
+    int? subscriptionId,
+    List<BarcodeFormats>? formats,
+    Rect? roi,
+    bool clearRoi = false,
+    List<FrameStage>? preprocess,
+  }) async {
+    final updated = await _channel.invokeMethod('updateConfig', {
+      if (subscriptionId != null) 'subscriptionId': subscriptionId,
+      if (formats != null)
+        'formats': formats
+            .map((format) => format.toString().split('.')[1])
+            .toList(growable: false),
+      if (roi != null) 'roi': [roi.left, roi.top, roi.right, roi.bottom],
+      if (roi == null && clearRoi) 'roi': null,
+      if (preprocess != null)
+        'preprocess': preprocess
+            .map((stage) => stage.toString().split('.').last)
+            .toList(growable: false),
+    });
+    return updated == true;
+  }
+
   static Future<void> setCameraLensFacing(
       CameraLensDirection cameraLensDirection) {
     return _channel
@@ -97,6 +159,16 @@ class QrMobileVision {
         .catchError(print);
   }
 
+  /// Stop analysing frames while keeping the camera preview running.
+  static Future<void> pauseDetection() {
+    return _channel.invokeMethod('pauseDetection').catchError(print);
+  }
+
+  /// Start analysing frames again after [pauseDetection] or a single shot.
+  static Future<void> resumeDetection() {
+    return _channel.invokeMethod('resumeDetection').catchError(print);
+  }
+
   static Future toggleTorch() {
     return _channel.invokeMethod('toggleTorch');
   }
@@ -143,6 +215,17 @@ class QrMobileVision {
     return zoomFactor;
   }
 
+  /// Set any zoom factor, limited to what the camera supports. Android only;
+  /// use [setZoomFactor] for the fixed steps on iOS.
+  static Future<void> setZoom(double zoom) {
+    return _channel.invokeMethod('setZoomFactor', zoom).catchError(print);
+  }
+
+  /// The zoom factor last set, which isn't necessarily one of [CameraZoomFactor].
+  static Future<double?> getZoom() {
+    return _channel.invokeMethod<double>('getZoomFactor');
+  }
+
   static Future<CameraLensDirection?> getCameraLensFacing() async {
     final int? cameraLensFacing =
         await _channel.invokeMethod('getCameraLensFacing');
@@ -160,6 +243,78 @@ class QrMobileVision {
     return null;
   }
 
+  /// Counters describing the native detection pipeline, or null when the
+  /// camera isn't running or the platform doesn't report them.
+  static Future<Map<String, dynamic>?> getStats() async {
+    final stats = await _channel.invokeMethod('getStats').catchError(print);
+    if (stats is Map) {
+      return stats.cast<String, dynamic>();
+    }
+    return null;
+  }
+
+  /// The cameras that could have been used, best scoring first, each with
+  /// `cameraId`, `physicalCameraId`, `score` and `selected` among others.
+  /// Null when the camera isn't running or the platform doesn't report them.
+  static Future<List<Map<String, dynamic>>?> getCameras() async {
+    final cameras = await _channel.invokeMethod('getCameras').catchError(print);
+    if (cameras is List) {
+      return cameras
+          .map((camera) => (camera as Map).cast<String, dynamic>())
+          .toList();
+    }
+    return null;
+  }
+
+  /// Write the frame spans recorded with [DetectionOptions.traceSpans] to
+  /// [path], or to the app's cache directory, as a Chrome trace JSON file that
+  /// chrome://tracing or ui.perfetto.dev can open. Returns the file's path, or
+  /// null if spans aren't being recorded. Android only.
+  static Future<String?> dumpTrace({String? path}) async {
+    final file = await _channel.invokeMethod('dumpTrace', {'path': path});
+    return file is String ? file : null;
+  }
+
+  /// Set the handler told when low light control turns exposure compensation
+  /// or the torch on or off.
+  static void setLightingHandler(LightingHandler? lightingHandler) {
+    channelReader.setLightingHandler(lightingHandler);
+  }
+
+  /// Set the handler told when the camera stalls or reports an error, about
+  /// each recovery attempt, and once frames arrive again.
+  static void setRecoveryHandler(RecoveryHandler? recoveryHandler) {
+    channelReader.setRecoveryHandler(recoveryHandler);
+  }
+
+  /// Set the handler told when power aware scheduling steps detection down or
+  /// back up.
+  static void setPowerLevelHandler(PowerLevelHandler? powerLevelHandler) {
+    channelReader.setPowerLevelHandler(powerLevelHandler);
+  }
+
+  /// Set the handler receiving changed entries while running in inventory mode.
+  static void setInventoryHandler(InventoryHandler? inventoryHandler) {
+    channelReader.setInventoryHandler(inventoryHandler);
+  }
+
+  /// A page of the codes accumulated in inventory mode, or null if not
+  /// running in inventory mode.
+  static Future<InventoryPage?> getInventory({int offset = 0, int? limit}) async {
+    final page = await _channel.invokeMethod('getInventory', {
+      'offset': offset,
+      'limit': limit,
+    }).catchError(print);
+    if (page is Map) {
+      return InventoryPage(page);
+    }
+    return null;
+  }
+
+  static Future<void> clearInventory() {
+    return _channel.invokeMethod('clearInventory').catchError(print);
+  }
+
   static Future heartbeat() {
     return _channel.invokeMethod('heartbeat').catchError(print);
   }
@@ -175,18 +330,56 @@ class QrMobileVision {
 enum FrameRotation { none, ninetyCC, oneeighty, twoseventyCC }
 
 typedef void QRCodeHandler(List<Barcode> qr);
+typedef void InventoryHandler(List<InventoryEntry> changed);
+typedef void LightingHandler(LightingEvent event);
+typedef void RecoveryHandler(CameraRecoveryEvent event);
+typedef void PowerLevelHandler(PowerLevelEvent event);
 
 class QrChannelReader {
   QrChannelReader(this.channel) {
     channel.setMethodCallHandler((MethodCall call) async {
       switch (call.method) {
         case 'qrRead':
-          if (qrCodeHandler != null) {
-            assert(call.arguments is List);
-            final List<Barcode> barcodes = (call.arguments as List)
+          // a shared camera sends each subscription its own results.
+          QRCodeHandler? handler = qrCodeHandler;
+          dynamic codes = call.arguments;
+          if (codes is Map) {
+            handler = subscriptionHandlers[codes['subscriptionId']];
+            codes = codes['codes'];
+          }
+          if (handler != null) {
+            assert(codes is List);
+            final List<Barcode> barcodes = (codes as List)
                 .map((barcode) => Barcode(barcode))
                 .toList();
-            qrCodeHandler!(barcodes);
+            handler(barcodes);
+          }
+          break;
+        case 'inventoryDelta':
+          if (inventoryHandler != null) {
+            assert(call.arguments is List);
+            final List<InventoryEntry> changed = (call.arguments as List)
+                .map((entry) => InventoryEntry(entry))
+                .toList();
+            inventoryHandler!(changed);
+          }
+          break;
+        case 'lightingChanged':
+          if (lightingHandler != null) {
+            assert(call.arguments is Map);
+            lightingHandler!(LightingEvent(call.arguments));
+          }
+          break;
+        case 'cameraRecovery':
+          if (recoveryHandler != null) {
+            assert(call.arguments is Map);
+            recoveryHandler!(CameraRecoveryEvent(call.arguments));
+          }
+          break;
+        case 'powerLevelChanged':
+          if (powerLevelHandler != null) {
+            assert(call.arguments is Map);
+            powerLevelHandler!(PowerLevelEvent(call.arguments));
           }
           break;
         default:
@@ -200,6 +393,39 @@ class QrChannelReader {
     this.qrCodeHandler = qrch;
   }
 
+  void addSubscription(int subscriptionId, QRCodeHandler handler) {
+    subscriptionHandlers[subscriptionId] = handler;
+  }
+
+  void removeSubscription(int subscriptionId) {
+    subscriptionHandlers.remove(subscriptionId);
+  }
+
+  void clearSubscriptions() {
+    subscriptionHandlers.clear();
+  }
+
+  void setInventoryHandler(InventoryHandler? handler) {
+    this.inventoryHandler = handler;
+  }
+
+  void setLightingHandler(LightingHandler? handler) {
+    this.lightingHandler = handler;
+  }
+
+  void setRecoveryHandler(RecoveryHandler? handler) {
+    this.recoveryHandler = handler;
+  }
+
+  void setPowerLevelHandler(PowerLevelHandler? handler) {
+    this.powerLevelHandler = handler;
+  }
+
   MethodChannel channel;
   QRCodeHandler? qrCodeHandler;
+  final Map<int, QRCodeHandler> subscriptionHandlers = {};
+  InventoryHandler? inventoryHandler;
+  LightingHandler? lightingHandler;
+  RecoveryHandler? recoveryHandler;
+  PowerLevelHandler? powerLevelHandler;
 }
@@ -0,0 +1,26 @@
+/// Sent while the native camera recovers from a stall or error.
+class CameraRecoveryEvent {
+  /// One of `stall`, `error`, `recoveryAttempt` or `recovered`.
+  final String event;
+
+  /// What set the recovery off, such as `noFrames`, `disconnected` or
+  /// `configureFailed`.
+  final String? cause;
+
+  /// For `recoveryAttempt`, whether the `session` is being recreated or the
+  /// `device` reopened.
+  final String? action;
+
+  /// Attempts made so far in this recovery.
+  final int attempt;
+
+  /// Time since the recovery started; for `recovered`, how long it took.
+  final int durationMillis;
+
+  CameraRecoveryEvent(Map<dynamic, dynamic> _data)
+      : event = _data['event'],
+        cause = _data['cause'],
+        action = _data['action'],
+        attempt = _data['attempt'],
+        durationMillis = _data['durationMillis'];
+}